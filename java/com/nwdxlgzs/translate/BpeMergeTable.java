@@ -0,0 +1,204 @@
+package com.nwdxlgzs.translate;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 加载时把merges编译成整数表：每个出现过的符号（单字符、merges两边和合并结果）分配一个符号id，
+ * (左id, 右id) -> (rank, 合并后的id) 放进开放寻址表，bpe时整个词只在int数组上原地合并，不再拼字符串。
+ * 合并顺序和原来的字符串实现完全一致：每轮取rank最小的相邻对，从左到右不重叠地全部合并。
+ */
+final class BpeMergeTable {
+    private static final long EMPTY = -1L;
+
+    //BMP字符 -> 符号id，-1表示不在任何merge里也不在词表里
+    private final int[] charSymbols = new int[65536];
+    //符号id -> 词表id，不在词表里的是unk
+    private final long[] symbolTokens;
+    private final long[] keys;
+    private final int[] ranks;
+    private final int[] mergedSymbols;
+    private final int mask;
+    private final long unkTokenId;
+    private final ThreadLocal<int[]> work = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[64];
+        }
+    };
+
+    /** merges[i]是第i条规则的两半，重复的规则以最后一条的rank为准 */
+    BpeMergeTable(VocabStore vocab, List<String[]> merges, long unkTokenId) {
+        this.unkTokenId = unkTokenId;
+        HashMap<String, Integer> symbols = new HashMap<>();
+        int[][] compiled = new int[merges.size()][];
+        for (int i = 0; i < merges.size(); i++) {
+            String[] parts = merges.get(i);
+            compiled[i] = new int[]{symbol(symbols, parts[0]), symbol(symbols, parts[1]),
+                    symbol(symbols, parts[0] + parts[1])};
+        }
+        Arrays.fill(charSymbols, -1);
+        for (int id = vocab.nextId(0); id >= 0; id = vocab.nextId(id + 1)) {
+            if (vocab.tokenLength(id) == 1) symbol(symbols, vocab.token(id));
+        }
+        symbolTokens = new long[symbols.size()];
+        for (Map.Entry<String, Integer> entry : symbols.entrySet()) {
+            long id = vocab.get(entry.getKey());
+            symbolTokens[entry.getValue()] = id < 0 ? unkTokenId : id;
+            if (entry.getKey().length() == 1) charSymbols[entry.getKey().charAt(0)] = entry.getValue();
+        }
+        int capacity = 16;
+        while (capacity < compiled.length * 2) capacity <<= 1;
+        mask = capacity - 1;
+        keys = new long[capacity];
+        ranks = new int[capacity];
+        mergedSymbols = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        for (int i = 0; i < compiled.length; i++) {
+            long key = pairKey(compiled[i][0], compiled[i][1]);
+            int slot = find(key);
+            keys[slot] = key;
+            ranks[slot] = i;
+            mergedSymbols[slot] = compiled[i][2];
+        }
+    }
+
+    private BpeMergeTable(long[] symbolTokens, long[] keys, int[] ranks, int[] mergedSymbols, long unkTokenId) {
+        this.symbolTokens = symbolTokens;
+        this.keys = keys;
+        this.ranks = ranks;
+        this.mergedSymbols = mergedSymbols;
+        this.mask = keys.length - 1;
+        this.unkTokenId = unkTokenId;
+        Arrays.fill(charSymbols, -1);
+    }
+
+    /** 编译好的表原样写出去，readFrom读回来不用再编译 */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeLong(unkTokenId);
+        out.writeInt(symbolTokens.length);
+        for (long token : symbolTokens) out.writeLong(token);
+        int chars = 0;
+        for (int symbol : charSymbols) {
+            if (symbol >= 0) chars++;
+        }
+        out.writeInt(chars);
+        for (int c = 0; c < charSymbols.length; c++) {
+            if (charSymbols[c] < 0) continue;
+            out.writeChar(c);
+            out.writeInt(charSymbols[c]);
+        }
+        out.writeInt(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            out.writeLong(keys[i]);
+            out.writeInt(ranks[i]);
+            out.writeInt(mergedSymbols[i]);
+        }
+    }
+
+    static BpeMergeTable readFrom(ByteBuffer in) {
+        long unk_token_id = in.getLong();
+        long[] symbol_tokens = new long[in.getInt()];
+        for (int i = 0; i < symbol_tokens.length; i++) symbol_tokens[i] = in.getLong();
+        int chars = in.getInt();
+        int[] char_codes = new int[chars];
+        int[] char_symbols = new int[chars];
+        for (int i = 0; i < chars; i++) {
+            char_codes[i] = in.getChar();
+            char_symbols[i] = in.getInt();
+        }
+        int capacity = in.getInt();
+        if (Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("bad merge table capacity " + capacity);
+        long[] keys = new long[capacity];
+        int[] ranks = new int[capacity];
+        int[] merged_symbols = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            keys[i] = in.getLong();
+            ranks[i] = in.getInt();
+            merged_symbols[i] = in.getInt();
+        }
+        BpeMergeTable table = new BpeMergeTable(symbol_tokens, keys, ranks, merged_symbols, unk_token_id);
+        for (int i = 0; i < chars; i++) {
+            table.charSymbols[char_codes[i]] = char_symbols[i];
+        }
+        return table;
+    }
+
+    private static int symbol(HashMap<String, Integer> symbols, String s) {
+        Integer id = symbols.get(s);
+        if (id == null) {
+            id = symbols.size();
+            symbols.put(s, id);
+        }
+        return id;
+    }
+
+    private static long pairKey(int left, int right) {
+        return ((long) left << 32) | (right & 0xFFFFFFFFL);
+    }
+
+    /** key所在的槽位，不存在时返回应插入的空槽 */
+    private int find(long key) {
+        int slot = (int) (mix(key) & mask);
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /** word的bpe结果（词表id）写进out，从out_offset开始，返回个数；out不够大时返回-(需要的长度) */
+    int encode(String word, long[] out, int out_offset) {
+        int n = word.length();
+        int[] s = work.get();
+        if (s.length < n) {
+            s = new int[Math.max(n, s.length * 2)];
+            work.set(s);
+        }
+        for (int i = 0; i < n; i++) {
+            s[i] = charSymbols[word.charAt(i)];
+        }
+        while (n > 1) {
+            int best_rank = Integer.MAX_VALUE;
+            int best_slot = -1;
+            for (int i = 0; i < n - 1; i++) {
+                if (s[i] < 0 || s[i + 1] < 0) continue;
+                int slot = find(pairKey(s[i], s[i + 1]));
+                if (keys[slot] != EMPTY && ranks[slot] < best_rank) {
+                    best_rank = ranks[slot];
+                    best_slot = slot;
+                }
+            }
+            if (best_slot < 0) break;
+            int left = (int) (keys[best_slot] >>> 32);
+            int right = (int) keys[best_slot];
+            int merged = mergedSymbols[best_slot];
+            int m = 0;
+            for (int i = 0; i < n; i++) {
+                if (i < n - 1 && s[i] == left && s[i + 1] == right) {
+                    s[m++] = merged;
+                    i++;
+                } else {
+                    s[m++] = s[i];
+                }
+            }
+            n = m;
+        }
+        if (out_offset + n > out.length) return -(out_offset + n);
+        for (int i = 0; i < n; i++) {
+            out[out_offset + i] = s[i] < 0 ? unkTokenId : symbolTokens[s[i]];
+        }
+        return n;
+    }
+}
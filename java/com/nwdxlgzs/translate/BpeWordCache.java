@@ -0,0 +1,103 @@
+package com.nwdxlgzs.translate;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 词 -> bpe结果（词表id）的线程安全LRU缓存，分成若干个分段各自加锁，多个线程同时分词时很少互相等。
+ * 缓存里的数组是共享的，取出来只能读。
+ */
+final class BpeWordCache {
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    BpeWordCache(int capacity) {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+        setCapacity(capacity);
+    }
+
+    private Segment segmentFor(String word) {
+        int h = word.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    long[] get(String word) {
+        Segment segment = segmentFor(word);
+        long[] ids;
+        synchronized (segment) {
+            ids = segment.get(word);
+        }
+        (ids == null ? missCount : hitCount).incrementAndGet();
+        return ids;
+    }
+
+    void put(String word, long[] ids) {
+        Segment segment = segmentFor(word);
+        synchronized (segment) {
+            if (segment.capacity > 0) segment.put(word, ids);
+        }
+    }
+
+    /** 总容量平均分到各个分段，0表示不缓存 */
+    void setCapacity(int capacity) {
+        if (capacity < 0) throw new IllegalArgumentException("capacity < 0");
+        int per_segment = (capacity + SEGMENTS - 1) / SEGMENTS;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.capacity = per_segment;
+                segment.trim();
+            }
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    long getHitCount() {
+        return hitCount.get();
+    }
+
+    long getMissCount() {
+        return missCount.get();
+    }
+
+    /** 按访问顺序排的LinkedHashMap，最久没用的在最前面 */
+    private static class Segment {
+        private final LinkedHashMap<String, long[]> map = new LinkedHashMap<>(16, 0.75f, true);
+        int capacity;
+
+        long[] get(String word) {
+            return map.get(word);
+        }
+
+        void put(String word, long[] ids) {
+            map.put(word, ids);
+            trim();
+        }
+
+        int size() {
+            return map.size();
+        }
+
+        void trim() {
+            Iterator<String> it = map.keySet().iterator();
+            while (map.size() > capacity) {
+                it.next();
+                it.remove();
+            }
+        }
+    }
+}
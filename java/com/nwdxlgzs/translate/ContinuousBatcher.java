@@ -0,0 +1,257 @@
+package com.nwdxlgzs.translate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按decoder步调度的翻译引擎：新请求在任意一步的间隙加入，结束的句子当步就把kv行挤出去，不用等最长的那句。
+ * merged decoder按past长度推位置、没有decoder侧mask，kv长度不同的行没法拼进同一次调用，
+ * 所以同一时刻加入的请求组成一个cohort（DecodeBatch），每一步每个cohort各跑一次decoder。
+ */
+public class ContinuousBatcher implements AutoCloseable {
+    private final Polyglots polyglots;
+    private final int maxRows;
+    private final int maxCohorts;
+    private final long maxWaitNanos;
+    private final BlockingQueue<Request> queue;
+    private final List<Request> waiting = new ArrayList<>();
+    private final List<Cohort> cohorts = new ArrayList<>();
+    private final Thread worker;
+    private volatile boolean closed = false;
+    private volatile int waitingSize = 0;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong decoderCalls = new AtomicLong();
+    private final AtomicLong decoderRows = new AtomicLong();
+
+    public ContinuousBatcher(Polyglots polyglots) {
+        this(polyglots, 64, 4, 5, 1024);
+    }
+
+    /**
+     * @param max_rows       所有cohort合计的decoder行数上限（每个请求最多占num_beams行）
+     * @param max_cohorts    同时在跑的cohort数上限，每多一个cohort每步就多一次decoder调用
+     * @param max_wait_millis 已有cohort在跑时，新请求最多攒多久再单独开一个cohort
+     */
+    public ContinuousBatcher(Polyglots polyglots, int max_rows, int max_cohorts, long max_wait_millis, int max_queue_size) {
+        if (max_rows < 1) throw new IllegalArgumentException("max_rows < 1");
+        if (max_cohorts < 1) throw new IllegalArgumentException("max_cohorts < 1");
+        this.polyglots = polyglots;
+        this.maxRows = max_rows;
+        this.maxCohorts = max_cohorts;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(max_wait_millis);
+        this.queue = new LinkedBlockingQueue<>(max_queue_size);
+        this.worker = new Thread(this::loop, "ContinuousBatcher");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public CompletableFuture<String> submit(String src_text, String src_lang, String tgt_lang, int max_length) {
+        return submit(src_text, src_lang, tgt_lang, max_length, polyglots.generationConfig.numBeams,
+                polyglots.generationConfig.topK);
+    }
+
+    public CompletableFuture<String> submit(String src_text, String src_lang, String tgt_lang, GenerationConfig generation_config) {
+        return submit(src_text, src_lang, tgt_lang, generation_config.maxLength, generation_config.numBeams,
+                generation_config.topK);
+    }
+
+    public CompletableFuture<String> submit(String src_text, String src_lang, String tgt_lang, int max_length, int num_beams, int top_k) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        try {
+            if (max_length > 200)
+                throw new IllegalArgumentException("M2M100-Model: max_length > 200 not support");
+            if (max_length < 1)
+                throw new IllegalArgumentException("max_length < 1");
+            polyglots.tokenizer.getLangId(src_lang);
+            Request request = new Request(src_text, src_lang, polyglots.tokenizer.getLangId(tgt_lang),
+                    max_length, num_beams, top_k, future);
+            if (closed) throw new RejectedExecutionException("ContinuousBatcher closed");
+            if (!queue.offer(request)) throw new RejectedExecutionException("ContinuousBatcher queue full");
+            //offer和close撞上了：worker可能已经退出，自己拿回来拒掉；remove失败说明已经被worker或close取走，由它们处理
+            if (closed && queue.remove(request)) throw new RejectedExecutionException("ContinuousBatcher closed");
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private void loop() {
+        while (true) {
+            try {
+                if (cohorts.isEmpty() && waiting.isEmpty()) {
+                    if (closed && queue.isEmpty()) break;
+                    Request request = queue.poll(50, TimeUnit.MILLISECONDS);
+                    if (request != null) waiting.add(request);
+                }
+            } catch (InterruptedException e) {
+                closed = true;
+            }
+            queue.drainTo(waiting);
+            admit();
+            waitingSize = waiting.size();
+            for (Cohort cohort : new ArrayList<>(cohorts)) {
+                stepCohort(cohort);
+            }
+        }
+    }
+
+    /** 在步与步之间把排队的请求编成一个新cohort */
+    private void admit() {
+        if (waiting.isEmpty() || cohorts.size() >= maxCohorts) return;
+        //第0步每句只有1行，之后会涨到num_beams行，所以按未结束请求的num_beams预留
+        int used_rows = 0;
+        for (Cohort cohort : cohorts) {
+            for (int g = 0; g < cohort.requests.size(); g++) {
+                if (!cohort.batch.isDone(g)) used_rows += cohort.requests.get(g).numBeams;
+            }
+        }
+        int waiting_rows = 0;
+        for (Request request : waiting) {
+            waiting_rows += request.numBeams;
+        }
+        int free_rows = maxRows - used_rows;
+        boolean expired = System.nanoTime() - waiting.get(0).enqueueNanos >= maxWaitNanos;
+        //已有cohort在跑时，新请求攒够剩余行数或者等满窗口才开新cohort，避免每步多出一堆batch=1的调用
+        if (!cohorts.isEmpty() && !expired && !closed && waiting_rows < free_rows) return;
+        List<Request> admitted = new ArrayList<>();
+        int rows = 0;
+        for (Request request : waiting) {
+            if (!admitted.isEmpty() && rows + request.numBeams > free_rows) break;
+            if (admitted.isEmpty() && request.numBeams > free_rows && !cohorts.isEmpty()) return;
+            admitted.add(request);
+            rows += request.numBeams;
+        }
+        waiting.subList(0, admitted.size()).clear();
+        int n = admitted.size();
+        List<String> texts = new ArrayList<>();
+        List<String> src_langs = new ArrayList<>();
+        long[] forced_token_ids = new long[n];
+        int[] max_lengths = new int[n];
+        int[] num_beams = new int[n];
+        int[] top_ks = new int[n];
+        for (int i = 0; i < n; i++) {
+            Request request = admitted.get(i);
+            texts.add(request.text);
+            src_langs.add(request.srcLang);
+            forced_token_ids[i] = request.tgtLangId;
+            max_lengths[i] = request.maxLength;
+            num_beams[i] = request.numBeams;
+            top_ks[i] = request.topK;
+        }
+        try {
+            Map<String, Object> encoded = polyglots.tokenizer.call(texts, src_langs);
+            DecodeBatch batch = new DecodeBatch(polyglots,
+                    (long[][]) encoded.get("input_ids"), (long[][]) encoded.get("attention_mask"),
+                    forced_token_ids, max_lengths, num_beams, top_ks);
+            cohorts.add(new Cohort(batch, admitted));
+            requestCount.addAndGet(n);
+        } catch (Throwable e) {
+            for (Request request : admitted) {
+                request.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void stepCohort(Cohort cohort) {
+        try {
+            int rows = cohort.batch.getLiveRows();
+            cohort.batch.step();
+            decoderCalls.incrementAndGet();
+            decoderRows.addAndGet(rows);
+            for (int g : cohort.batch.takeFinished()) {
+                cohort.requests.get(g).future.complete(
+                        polyglots.tokenizer.decode(cohort.batch.getBestSequence(g), false));
+            }
+            if (cohort.batch.getLiveRows() > 0) return;
+        } catch (Throwable e) {
+            for (Request request : cohort.requests) {
+                request.future.completeExceptionally(e);
+            }
+        }
+        cohort.batch.close();
+        cohorts.remove(cohort);
+    }
+
+    /** 当前在跑的cohort数 */
+    public int getCohortCount() {
+        return cohorts.size();
+    }
+
+    public int getQueueSize() {
+        return queue.size() + waitingSize;
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getDecoderCalls() {
+        return decoderCalls.get();
+    }
+
+    /** 平均每次decoder调用的行数，越接近max_rows说明batch越满 */
+    public double getAverageRowsPerCall() {
+        long calls = decoderCalls.get();
+        return calls == 0 ? 0 : (double) decoderRows.get() / calls;
+    }
+
+    /**
+     * 不再接受新请求，已提交的请求全部跑完后返回。
+     * 等待时被中断就恢复中断标记直接返回，worker照样把已提交的请求跑完
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        Request request;
+        while ((request = queue.poll()) != null) {
+            request.future.completeExceptionally(new RejectedExecutionException("ContinuousBatcher closed"));
+        }
+    }
+
+    private static class Cohort {
+        final DecodeBatch batch;
+        final List<Request> requests;
+
+        Cohort(DecodeBatch batch, List<Request> requests) {
+            this.batch = batch;
+            this.requests = Collections.unmodifiableList(requests);
+        }
+    }
+
+    private static class Request {
+        final String text;
+        final String srcLang;
+        final long tgtLangId;
+        final int maxLength;
+        final int numBeams;
+        final int topK;
+        final CompletableFuture<String> future;
+        final long enqueueNanos = System.nanoTime();
+
+        Request(String text, String srcLang, long tgtLangId, int maxLength, int numBeams, int topK,
+                CompletableFuture<String> future) {
+            this.text = text;
+            this.srcLang = srcLang;
+            this.tgtLangId = tgtLangId;
+            this.maxLength = maxLength;
+            this.numBeams = numBeams;
+            this.topK = topK;
+            this.future = future;
+        }
+    }
+}
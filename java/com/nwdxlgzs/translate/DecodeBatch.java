@@ -0,0 +1,632 @@
+package com.nwdxlgzs.translate;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ai.onnxruntime.OnnxJavaType;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtException;
+
+/**
+ * 同一步开始解码的一批句子的beam search状态。
+ * 每组beam对应encoder的一行（默认组g就是第g行，一句翻多种语言时多个组共用一行），组g在第0步被强制选forced_token_ids[g]；
+ * 所有组的存活beam拼成一个decoder batch，一步只跑一次decoder，已经结束的组不再占行。
+ * merged decoder按past长度推位置、也没有decoder侧的mask，所以kv长度不同的句子不能拼进同一个batch。
+ */
+class DecodeBatch implements AutoCloseable {
+    private final Polyglots polyglots;
+    //整个batch都在同一个session上跑，close时归还
+    private final int session;
+    private boolean sessionReleased = false;
+    private final M2MEncoder encoder;
+    private final M2MDecoder decoder;
+    private final List<Group> groups = new ArrayList<>();
+    private final long decoderStartTokenId;
+    private final long eosTokenId;
+    private OnnxTensor attentionMask;
+    private OnnxTensor lastHiddenState;
+    //TMD我真是服了，没人告诉我Encoder的得一直用一开始的啊
+    private HashMap<String, OnnxTensor> encoderPastKeyValues = null;
+    //非空时attentionMask/lastHiddenState/encoderPastKeyValues都是EncoderCache条目里的，不归这个batch close
+    private EncoderCache.Entry encoderEntry = null;
+    //encoder侧输入（hidden states/mask/encoder kv）按当前存活beam所属的组扩展后的版本
+    //encoderPastKeyValues在第0步算出来时每组一行，从EncoderCache来的则和encoder一样每句一行
+    private final HashMap<String, OnnxTensor> encoderFeed = new HashMap<>();
+    private int[] encoderFeedGroups = null;
+    //decoder的past key values，第i行对应第i个存活beam
+    private final HashMap<String, OnnxTensor> decoderPastKeyValues = new HashMap<>();
+    private final List<Integer> newlyFinished = new ArrayList<>();
+    private int step = 0;
+    private int liveRows;
+    private final boolean greedy;
+    private OnnxTensor greedyInput = null;
+    private ByteBuffer greedyInputBuffer = null;
+    private int greedyInputRows = 0;
+    //logSoftmaxTopK的输出缓冲区，整个batch复用
+    private final int[] topIndices;
+    private final float[] topLogProbs;
+    //预分配模式下第0步之后decoder kv和logits都在kvCache里，decoderPastKeyValues不再使用；kvCache是从session借的，close时还回去
+    private final boolean preallocate;
+    private DecoderKVCache kvCache = null;
+    private int kvCacheRows = 0;
+    private int kvCacheLength = 0;
+    private int logitsWidth;
+
+    DecodeBatch(Polyglots polyglots, long[][] input_ids, long[][] attention_mask, long[] forced_token_ids,
+                int max_length, int num_beams, int top_k) throws OrtException {
+        this(polyglots, input_ids, attention_mask, forced_token_ids,
+                filled(forced_token_ids.length, max_length), filled(forced_token_ids.length, num_beams),
+                filled(forced_token_ids.length, top_k));
+    }
+
+    DecodeBatch(Polyglots polyglots, long[][] input_ids, long[][] attention_mask, long[] forced_token_ids,
+                int[] max_lengths, int[] num_beams, int[] top_ks) throws OrtException {
+        this(polyglots, input_ids, attention_mask, identity(forced_token_ids.length), forced_token_ids,
+                max_lengths, num_beams, top_ks);
+    }
+
+    /** 组g用encoder的第encoder_rows[g]行 */
+    DecodeBatch(Polyglots polyglots, long[][] input_ids, long[][] attention_mask, int[] encoder_rows,
+                long[] forced_token_ids, int[] max_lengths, int[] num_beams, int[] top_ks) throws OrtException {
+        this(polyglots, encoder_rows, forced_token_ids, max_lengths, num_beams, top_ks);
+        OnnxTensor input_ids_Tensor = null;
+        try {
+            for (int row : encoder_rows) {
+                if (row < 0 || row >= input_ids.length)
+                    throw new IllegalArgumentException("encoder row " + row + " out of range " + input_ids.length);
+            }
+            input_ids_Tensor = encoder.createLikeArray(input_ids, OnnxJavaType.INT64);
+            attentionMask = encoder.createLikeArray(attention_mask, OnnxJavaType.INT64);
+            Map<String, OnnxTensor> encoder_outputs = encoder.predict(input_ids_Tensor, attentionMask);
+            lastHiddenState = encoder_outputs.get("last_hidden_state");
+        } catch (OrtException | RuntimeException e) {
+            close();
+            throw e;
+        } finally {
+            if (input_ids_Tensor != null) input_ids_Tensor.close();
+        }
+    }
+
+    /**
+     * 用EncoderCache里的结果解码，不跑encoder；第0步直接走use_cache_branch分支复用缓存的cross-attention kv。
+     * entry必须已经retain过，batch close时release
+     */
+    DecodeBatch(Polyglots polyglots, EncoderCache.Entry entry, long[] forced_token_ids,
+                int max_length, int num_beams, int top_k) {
+        this(polyglots, new int[forced_token_ids.length], forced_token_ids, filled(forced_token_ids.length, max_length),
+                filled(forced_token_ids.length, num_beams), filled(forced_token_ids.length, top_k));
+        encoderEntry = entry;
+        attentionMask = entry.attentionMask;
+        lastHiddenState = entry.lastHiddenState;
+        encoderPastKeyValues = entry.encoderPastKeyValues;
+    }
+
+    private DecodeBatch(Polyglots polyglots, int[] encoder_rows, long[] forced_token_ids,
+                        int[] max_lengths, int[] num_beams, int[] top_ks) {
+        this.polyglots = polyglots;
+        this.decoderStartTokenId = polyglots.generationConfig.decoderStartTokenId;
+        this.eosTokenId = polyglots.generationConfig.eosTokenId;
+        for (int g = 0; g < forced_token_ids.length; g++) {
+            if (max_lengths[g] < 1)
+                throw new IllegalArgumentException("max_length < 1");
+            ArrayList<Long> initial_input = new ArrayList<>();
+            initial_input.add(decoderStartTokenId);
+            Group group = new Group(encoder_rows[g], forced_token_ids[g], max_lengths[g], num_beams[g], top_ks[g]);
+            group.beams.add(new Beam(initial_input, 0.0f, g, -1, false));
+            groups.add(group);
+        }
+        liveRows = groups.size();
+        boolean all_greedy = true;
+        for (int beams : num_beams) {
+            if (beams != 1) all_greedy = false;
+        }
+        greedy = all_greedy;
+        preallocate = polyglots.isPreallocateKVCache();
+        for (Group group : groups) {
+            kvCacheRows += group.numBeams;
+            kvCacheLength = Math.max(kvCacheLength, group.maxLength);
+        }
+        int max_top_k = 1;
+        for (int top_k : top_ks) {
+            max_top_k = Math.max(max_top_k, top_k);
+        }
+        topIndices = new int[max_top_k];
+        topLogProbs = new float[max_top_k];
+        //放在最后，前面参数检查抛异常时不会占着session
+        session = polyglots.acquireSession();
+        encoder = polyglots.getEncoder(session);
+        decoder = polyglots.getDecoder(session);
+    }
+
+    static int[] filled(int n, int value) {
+        int[] arr = new int[n];
+        Arrays.fill(arr, value);
+        return arr;
+    }
+
+    private static int[] identity(int n) {
+        int[] arr = new int[n];
+        for (int i = 0; i < n; i++) arr[i] = i;
+        return arr;
+    }
+
+    /** 已经走过的decoder步数，也就是kv cache的长度 */
+    public int getStep() {
+        return step;
+    }
+
+    public int getGroupCount() {
+        return groups.size();
+    }
+
+    /** 下一步decoder batch的行数 */
+    public int getLiveRows() {
+        return liveRows;
+    }
+
+    public boolean isDone(int group) {
+        return groups.get(group).done;
+    }
+
+    /** 取出上次调用以来刚结束的组 */
+    public List<Integer> takeFinished() {
+        List<Integer> finished = new ArrayList<>(newlyFinished);
+        newlyFinished.clear();
+        return finished;
+    }
+
+    public ArrayList<Long> getBestSequence(int group) {
+        List<Beam> beams = groups.get(group).beams;
+        Beam best_beam = beams.get(0);
+        for (Beam beam : beams) {
+            if (beam.getScore() > best_beam.getScore()) {
+                best_beam = beam;
+            }
+        }
+        return best_beam.getSequence();
+    }
+
+    /**
+     * 组内所有beam的公共前缀：之后的beam都从当前beam长出来，这段不会再变。
+     * 贪婪解码时就是整条序列，已结束的组直接返回最终结果。
+     */
+    public List<Long> getStablePrefix(int group) {
+        Group g = groups.get(group);
+        if (g.done) return getBestSequence(group);
+        ArrayList<Long> first = g.beams.get(0).getSequence();
+        int length = first.size();
+        for (Beam beam : g.beams) {
+            ArrayList<Long> sequence = beam.getSequence();
+            int i = 0;
+            int n = Math.min(length, sequence.size());
+            while (i < n && sequence.get(i).equals(first.get(i))) i++;
+            length = i;
+        }
+        return first.subList(0, length);
+    }
+
+    /**
+     * 单句batch跑完第0步后，把encoder结果连同cross-attention kv交给cache，所有权随之转移。
+     * 本来就是从cache里取的、或者encoder不止一句时什么也不做
+     */
+    public void cacheEncoderState(EncoderCache cache, String src_text, String src_lang) throws OrtException {
+        if (encoderEntry != null || encoderPastKeyValues == null || lastHiddenState.getInfo().getShape()[0] != 1) return;
+        HashMap<String, OnnxTensor> encoder_past = encoderPastKeyValues;
+        if (groups.size() != 1) {
+            //一句翻多种语言时第0步每组各算了一份，内容一样，只留一行
+            encoder_past = new HashMap<>();
+            try {
+                for (Map.Entry<String, OnnxTensor> entry : encoderPastKeyValues.entrySet()) {
+                    encoder_past.put(entry.getKey(), decoder.gatherRows(entry.getValue(), new int[]{0}));
+                }
+            } catch (OrtException | RuntimeException e) {
+                Polyglots.closeMapTensors(encoder_past);
+                throw e;
+            }
+            Polyglots.closeMapTensors(encoderPastKeyValues);
+        }
+        encoderPastKeyValues = encoder_past;
+        encoderEntry = cache.put(src_text, src_lang, attentionMask, lastHiddenState, encoder_past);
+    }
+
+    /** 所有未结束组的存活beam一起跑一步decoder，返回false表示全部结束 */
+    public boolean step() throws OrtException {
+        return greedy ? stepGreedy() : stepBeam();
+    }
+
+    /**
+     * num_beams全是1时的快速路径：直接在logits上取argmax，不算softmax、不建候选和Beam，
+     * 每组的序列原地追加，decoder输入的tensor在行数不变时一直复用
+     */
+    private boolean stepGreedy() throws OrtException {
+        int batch_size = 0;
+        int[] row_groups = new int[groups.size()];
+        for (int g = 0; g < groups.size(); g++) {
+            if (!groups.get(g).done) row_groups[batch_size++] = g;
+        }
+        if (batch_size == 0) return false;
+        row_groups = Arrays.copyOf(row_groups, batch_size);
+        if (greedyInput == null || greedyInputRows != batch_size) {
+            if (greedyInput != null) greedyInput.close();
+            //按最多的行数分配一次，行数变了只换一个前batch_size行的视图
+            if (greedyInputBuffer == null)
+                greedyInputBuffer = ByteBuffer.allocateDirect(groups.size() * 8).order(ByteOrder.nativeOrder());
+            ByteBuffer view = greedyInputBuffer.duplicate();
+            view.clear();
+            view.limit(batch_size * 8);
+            greedyInput = decoder.create(view.slice().order(ByteOrder.nativeOrder()), new long[]{batch_size, 1}, OnnxJavaType.INT64);
+            greedyInputRows = batch_size;
+        }
+        for (int b = 0; b < batch_size; b++) {
+            ArrayList<Long> sequence = groups.get(row_groups[b]).beams.get(0).getSequence();
+            greedyInputBuffer.putLong(b * 8, sequence.get(sequence.size() - 1));
+        }
+        HashMap<String, OnnxTensor> present_key_values = new HashMap<>();
+        try {
+            TensorBase.FloatRows logits = runDecoder(greedyInput, row_groups, present_key_values);
+            int[] parents = new int[batch_size];
+            int live_count = 0;
+            for (int b = 0; b < batch_size; b++) {
+                Group group = groups.get(row_groups[b]);
+                // 第0步强制选择目标语言token
+                long next_token = step == 0 ? group.forcedTokenId
+                        : TensorBase.argmax(logits.data, logits.lastOffset(b), logits.width);
+                group.beams.get(0).getSequence().add(next_token);
+                if (next_token == eosTokenId || step + 1 >= group.maxLength) {
+                    group.done = true;
+                    newlyFinished.add(row_groups[b]);
+                } else {
+                    parents[live_count++] = b;
+                }
+            }
+            step++;
+            liveRows = live_count;
+            reorderPast(Arrays.copyOf(parents, live_count), batch_size, present_key_values);
+            return live_count > 0;
+        } finally {
+            Polyglots.closeMapTensors(present_key_values);
+        }
+    }
+
+    private boolean stepBeam() throws OrtException {
+        List<Beam> live_beams = new ArrayList<>();
+        for (Group group : groups) {
+            if (group.done) continue;
+            for (Beam beam : group.beams) {
+                if (!beam.isFinished()) live_beams.add(beam);
+            }
+        }
+        int batch_size = live_beams.size();
+        if (batch_size == 0) return false;
+        int[] row_groups = new int[batch_size];
+        for (int b = 0; b < batch_size; b++) {
+            row_groups[b] = live_beams.get(b).getGroup();
+        }
+        OnnxTensor decoder_input = null;
+        HashMap<String, OnnxTensor> present_key_values = new HashMap<>();
+        try {
+            //增量解码：前缀已经在kv cache里了，只喂每个beam最新的一个token，input_ids为[batch, 1]
+            long[][] last_tokens = new long[batch_size][1];
+            for (int b = 0; b < batch_size; b++) {
+                ArrayList<Long> sequence = live_beams.get(b).getSequence();
+                last_tokens[b][0] = sequence.get(sequence.size() - 1);
+            }
+            decoder_input = decoder.createLikeArray(last_tokens, OnnxJavaType.INT64);
+            TensorBase.FloatRows logits = runDecoder(decoder_input, row_groups, present_key_values);
+            List<List<Beam>> next_groups = new ArrayList<>();
+            for (Group group : groups) {
+                List<Beam> next_beams = new ArrayList<>();
+                if (!group.done) {
+                    for (Beam beam : group.beams) {
+                        if (beam.isFinished()) next_beams.add(beam);
+                    }
+                }
+                next_groups.add(next_beams);
+            }
+            for (int b = 0; b < batch_size; b++) {
+                Beam beam = live_beams.get(b);
+                Group group = groups.get(beam.getGroup());
+                int count;
+                if (step == 0) {
+                    // 强制选择目标语言token，其余全是-inf，log概率就是0
+                    topIndices[0] = (int) group.forcedTokenId;
+                    topLogProbs[0] = 0.0f;
+                    count = 1;
+                } else {
+                    count = TensorBase.logSoftmaxTopK(logits.data, logits.lastOffset(b), logits.width,
+                            group.topK, topIndices, topLogProbs);
+                }
+                for (int i = 0; i < count; i++) {
+                    int idx = topIndices[i];
+                    ArrayList<Long> new_sequence = new ArrayList<>(beam.getSequence());
+                    new_sequence.add((long) idx);
+                    float new_score = beam.getScore() + topLogProbs[i];
+                    next_groups.get(beam.getGroup()).add(new Beam(new_sequence, new_score, beam.getGroup(), b,
+                            idx == eosTokenId));
+                }
+            }
+            //按父beam的行号重排decoder kv，下一步的第i行就是第i个存活beam
+            int max_rows = 0;
+            for (Group group : groups) {
+                if (!group.done) max_rows += group.numBeams;
+            }
+            int[] parents = new int[max_rows];
+            int live_count = 0;
+            for (int g = 0; g < groups.size(); g++) {
+                Group group = groups.get(g);
+                if (group.done) continue;
+                group.beams = selectTopBeams(next_groups.get(g), group.numBeams);
+                boolean all_finished = true;
+                for (Beam beam : group.beams) {
+                    if (!beam.isFinished()) {
+                        all_finished = false;
+                        break;
+                    }
+                }
+                if (all_finished || step + 1 >= group.maxLength) {
+                    group.done = true;
+                    newlyFinished.add(g);
+                    continue;
+                }
+                for (Beam beam : group.beams) {
+                    if (!beam.isFinished()) {
+                        parents[live_count++] = beam.getParent();
+                    }
+                }
+            }
+            step++;
+            liveRows = live_count;
+            reorderPast(Arrays.copyOf(parents, live_count), batch_size, present_key_values);
+            return live_count > 0;
+        } finally {
+            if (decoder_input != null) decoder_input.close();
+            Polyglots.closeMapTensors(present_key_values);
+        }
+    }
+
+    /**
+     * 跑一次decoder，第b行属于组row_groups[b]。返回logits，present.*.decoder.*按past_key_values.*的名字放进present_key_values
+     */
+    private TensorBase.FloatRows runDecoder(OnnxTensor decoder_input, int[] row_groups,
+                                   HashMap<String, OnnxTensor> present_key_values) throws OrtException {
+        int batch_size = row_groups.length;
+        int[] encoder_rows = new int[batch_size];
+        for (int b = 0; b < batch_size; b++) {
+            encoder_rows[b] = groups.get(row_groups[b]).encoderRow;
+        }
+        //第0步组和encoder行一一对应时直接用encoder的输出，否则按行扩展
+        boolean direct = step == 0 && isIdentity(encoder_rows, (int) lastHiddenState.getInfo().getShape()[0]);
+        if (!direct && !Arrays.equals(encoderFeedGroups, row_groups)) {
+            Polyglots.closeMapTensors(encoderFeed);
+            encoderFeed.put("encoder_hidden_states", decoder.gatherRows(lastHiddenState, encoder_rows));
+            encoderFeed.put("encoder_attention_mask", decoder.gatherRows(attentionMask, encoder_rows));
+            if (encoderPastKeyValues != null) {
+                int[] past_rows = encoderEntry != null ? encoder_rows : row_groups;
+                for (Map.Entry<String, OnnxTensor> entry : encoderPastKeyValues.entrySet()) {
+                    encoderFeed.put(entry.getKey(), decoder.gatherRows(entry.getValue(), past_rows));
+                }
+            }
+            encoderFeedGroups = row_groups;
+        }
+        OnnxTensor encoder_attention_mask = direct ? attentionMask : encoderFeed.get("encoder_attention_mask");
+        OnnxTensor encoder_hidden_states = direct ? lastHiddenState : encoderFeed.get("encoder_hidden_states");
+        HashMap<String, OnnxTensor> decoder_outputs = null;
+        try {
+            //merged decoder按past_key_values.*.decoder.key的长度推位置，kv长度始终等于已喂token数即可对齐
+            HashMap<String, OnnxTensor> past_key_values = new HashMap<>();
+            if (step == 0 && encoderPastKeyValues != null) {
+                // cache命中：cross-attention kv已经有了，decoder past为空，直接走use_cache_branch分支
+                HashMap<String, OnnxTensor> empty_past = new HashMap<>();
+                polyglots.addPastKeyValues(empty_past, null, batch_size);
+                try {
+                    HashMap<String, OnnxTensor> encoder_past = direct ? encoderPastKeyValues : encoderFeed;
+                    for (Map.Entry<String, OnnxTensor> entry : empty_past.entrySet()) {
+                        past_key_values.put(entry.getKey(), encoder_past.containsKey(entry.getKey())
+                                ? encoder_past.get(entry.getKey()) : entry.getValue());
+                    }
+                    decoder_outputs = decoder.predict(
+                            decoder_input, encoder_attention_mask, encoder_hidden_states,
+                            true, past_key_values
+                    );
+                } finally {
+                    Polyglots.closeMapTensors(empty_past);
+                }
+            } else if (step == 0) {
+                // 第一次调用，初始化encoder的key和value，此时每组一行
+                polyglots.addPastKeyValues(past_key_values, null, batch_size);
+                try {
+                    decoder_outputs = decoder.predict(
+                            decoder_input, encoder_attention_mask, encoder_hidden_states,
+                            false, past_key_values
+                    );
+                } finally {
+                    Polyglots.closeMapTensors(past_key_values);
+                }
+            } else {
+                // 后续步骤，使用之前保存的encoder key和value
+                for (Map.Entry<String, OnnxTensor> entry : encoderFeed.entrySet()) {
+                    if (entry.getKey().contains(".encoder.")) {
+                        past_key_values.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                if (kvCache != null) {
+                    //decoder kv和logits直接写进预分配的缓冲区，present.*.encoder.*用不上就不让ORT输出
+                    past_key_values.putAll(kvCache.pastInputs());
+                    HashMap<String, OnnxTensor> bound_outputs = kvCache.bindOutputs();
+                    Polyglots.closeMapTensors(decoder.predict(
+                            decoder_input, encoder_attention_mask, encoder_hidden_states, true, past_key_values,
+                            Collections.<String>emptySet(), bound_outputs
+                    ));
+                    return TensorBase.floatRows(bound_outputs.get("logits"));
+                }
+                // 添加decoder的past key values
+                polyglots.addPastKeyValues(past_key_values, decoderPastKeyValues, batch_size);
+                decoder_outputs = decoder.predict(
+                        decoder_input, encoder_attention_mask, encoder_hidden_states, true, past_key_values
+                );
+            }
+            OnnxTensor logits_tensor = decoder_outputs.remove("logits");
+            //只要最后位置那一行，不用getValue拆成float[batch][seq][vocab]
+            TensorBase.FloatRows logits = TensorBase.floatRows(logits_tensor);
+            logits_tensor.close();
+            logitsWidth = logits.width;
+            for (Map.Entry<String, OnnxTensor> entry : decoder_outputs.entrySet()) {
+                String key = entry.getKey();
+                String past_key = key.replace("present.", "past_key_values.");
+                if (!key.startsWith("present.")) {
+                    entry.getValue().close();
+                } else if (key.contains(".encoder.")) {
+                    if (step == 0 && encoderEntry == null) {
+                        if (encoderPastKeyValues == null)
+                            encoderPastKeyValues = new HashMap<>();
+                        encoderPastKeyValues.put(past_key, entry.getValue());
+                        //第0步扩展出来的encoderFeed里还没有encoder kv，下一步重建
+                        encoderFeedGroups = null;
+                    } else {
+                        //后续的Encoder不需要
+                        entry.getValue().close();
+                    }
+                } else {
+                    present_key_values.put(past_key, entry.getValue());
+                }
+            }
+            decoder_outputs.clear();
+            return logits;
+        } finally {
+            if (decoder_outputs != null) Polyglots.closeMapTensors(decoder_outputs);
+        }
+    }
+
+    /** 按parents重排present得到下一步的decoder past，present里被直接接管的tensor会从map里移除 */
+    private void reorderPast(int[] parents, int batch_size, HashMap<String, OnnxTensor> present_key_values) throws OrtException {
+        if (kvCache != null) {
+            kvCache.commit(parents);
+            return;
+        }
+        Polyglots.closeMapTensors(decoderPastKeyValues);
+        if (parents.length == 0) return;
+        if (preallocate) {
+            //第0步的present还是ORT分配的，从这里开始换到按max_length预分配的缓冲区上
+            kvCache = polyglots.takeKVCache(session);
+            kvCache.reset(decoder, present_key_values, parents, kvCacheRows, kvCacheLength, logitsWidth);
+            return;
+        }
+        if (isIdentity(parents, batch_size)) {
+            decoderPastKeyValues.putAll(present_key_values);
+            present_key_values.clear();
+        } else {
+            for (Map.Entry<String, OnnxTensor> entry : present_key_values.entrySet()) {
+                decoderPastKeyValues.put(entry.getKey(), decoder.gatherRows(entry.getValue(), parents));
+            }
+        }
+    }
+
+    private static boolean isIdentity(int[] rows, int batch_size) {
+        if (rows.length != batch_size) return false;
+        for (int i = 0; i < rows.length; i++) {
+            if (rows[i] != i) return false;
+        }
+        return true;
+    }
+
+    private static List<Beam> selectTopBeams(List<Beam> beams, int num_beams) {
+        Collections.sort(beams, new Comparator<Beam>() {
+            @Override
+            public int compare(Beam a, Beam b) {
+                return Float.compare(b.getScore(), a.getScore());
+            }
+        });
+        return new ArrayList<>(beams.subList(0, Math.min(num_beams, beams.size())));
+    }
+
+    @Override
+    public void close() {
+        if (greedyInput != null) greedyInput.close();
+        greedyInput = null;
+        if (encoderEntry != null) {
+            encoderEntry.release();
+        } else {
+            if (attentionMask != null) attentionMask.close();
+            if (lastHiddenState != null) lastHiddenState.close();
+            Polyglots.closeMapTensors(encoderPastKeyValues);
+        }
+        encoderEntry = null;
+        attentionMask = null;
+        lastHiddenState = null;
+        encoderPastKeyValues = null;
+        Polyglots.closeMapTensors(encoderFeed);
+        Polyglots.closeMapTensors(decoderPastKeyValues);
+        if (kvCache != null) {
+            kvCache.close();
+            polyglots.returnKVCache(session, kvCache);
+        }
+        kvCache = null;
+        if (!sessionReleased) {
+            sessionReleased = true;
+            polyglots.releaseSession(session);
+        }
+    }
+
+    private static class Group {
+        final int encoderRow;
+        final long forcedTokenId;
+        final int maxLength;
+        final int numBeams;
+        final int topK;
+        List<Beam> beams = new ArrayList<>();
+        boolean done = false;
+
+        Group(int encoderRow, long forcedTokenId, int maxLength, int numBeams, int topK) {
+            this.encoderRow = encoderRow;
+            this.forcedTokenId = forcedTokenId;
+            this.maxLength = maxLength;
+            this.numBeams = numBeams;
+            this.topK = topK;
+        }
+    }
+
+    static class Beam {
+        private final ArrayList<Long> sequence;
+        private final float score;
+        private final int group;
+        private final int parent;
+        private final boolean finished;
+
+        Beam(ArrayList<Long> sequence, float score, int group, int parent, boolean finished) {
+            this.sequence = sequence;
+            this.score = score;
+            this.group = group;
+            this.parent = parent;
+            this.finished = finished;
+        }
+
+        public boolean isFinished() {
+            return finished;
+        }
+
+        public ArrayList<Long> getSequence() {
+            return sequence;
+        }
+
+        public float getScore() {
+            return score;
+        }
+
+        /** 所属的组（forced_token_ids的下标） */
+        public int getGroup() {
+            return group;
+        }
+
+        /** 上一步batch中的行号，用于重排past_key_values */
+        public int getParent() {
+            return parent;
+        }
+    }
+}
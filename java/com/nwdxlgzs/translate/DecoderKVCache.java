@@ -0,0 +1,168 @@
+package com.nwdxlgzs.translate;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import ai.onnxruntime.OnnxJavaType;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtException;
+
+/**
+ * decoder kv cache的预分配缓冲区，思路同ORT的IO binding：
+ * 每个past_key_values.*.decoder.*有前后两块按[max_rows, heads, max_length, head_dim]分配好的direct buffer，
+ * 前一块当这一步的past输入，后一块绑成present输出让ORT直接写进去；logits也绑到预分配的[max_rows, 1, vocab]上。
+ * 这一步结束后行顺序不变就前后互换，beam重排就直接按父行号拷回前一块。
+ * 每组session留一份（见Polyglots.takeKVCache），下一个batch用reset接着用，只有行数或长度超过已有容量时才重新分配，
+ * 所以解码时KV既不每步malloc/free，也不每次翻译重新分配，常驻内存就是getCapacityBytes()。
+ */
+class DecoderKVCache implements AutoCloseable {
+    private TensorBase base;
+    private String[] names = new String[0];
+    private int heads;
+    private int headDim;
+    private int maxLength;
+    private int vocab;
+    private ByteBuffer[] front = new ByteBuffer[0];
+    private ByteBuffer[] back = new ByteBuffer[0];
+    private ByteBuffer logitsBuffer = null;
+    private int rows;
+    private int length;
+    private final List<OnnxTensor> views = new ArrayList<>();
+
+    /**
+     * 开始一个新batch：用第0步ORT分配的present（已按past_key_values.*命名）初始化，第i行取自present的第parents[i]行。
+     * 已有的缓冲区放得下max_rows行、max_length长就直接复用
+     */
+    void reset(TensorBase base, HashMap<String, OnnxTensor> present_key_values, int[] parents,
+               int max_rows, int max_length, int vocab) throws OrtException {
+        closeViews();
+        String[] names = present_key_values.keySet().toArray(new String[0]);
+        long[] shape = present_key_values.get(names[0]).getInfo().getShape();
+        if (parents.length > max_rows || shape[2] > max_length)
+            throw new IllegalArgumentException("KV cache capacity too small");
+        int heads = (int) shape[1];
+        int head_dim = (int) shape[3];
+        long capacity = (long) max_rows * heads * max_length * head_dim * 4;
+        if (capacity > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("KV cache capacity exceeds 2GB: " + capacity);
+        this.base = base;
+        this.names = names;
+        this.heads = heads;
+        this.headDim = head_dim;
+        this.maxLength = max_length;
+        this.vocab = vocab;
+        if (front.length != names.length) {
+            front = Arrays.copyOf(front, names.length);
+            back = Arrays.copyOf(back, names.length);
+        }
+        for (int i = 0; i < names.length; i++) {
+            front[i] = ensureCapacity(front[i], (int) capacity);
+            back[i] = ensureCapacity(back[i], (int) capacity);
+        }
+        logitsBuffer = ensureCapacity(logitsBuffer, max_rows * vocab * 4);
+        length = (int) shape[2];
+        rows = parents.length;
+        int row_bytes = heads * length * headDim * 4;
+        for (int i = 0; i < names.length; i++) {
+            ByteBuffer src = present_key_values.get(names[i]).getByteBuffer();
+            copyRows(src, front[i], parents, row_bytes);
+        }
+    }
+
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int bytes) {
+        if (buffer != null && buffer.capacity() >= bytes) return buffer;
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+
+    /** 当前行数/长度下的past输入 */
+    HashMap<String, OnnxTensor> pastInputs() throws OrtException {
+        HashMap<String, OnnxTensor> inputs = new HashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            inputs.put(names[i], view(front[i], new long[]{rows, heads, length, headDim}));
+        }
+        return inputs;
+    }
+
+    /** 这一步要绑定的输出：present.*.decoder.*写到后一块，logits写到logitsBuffer */
+    HashMap<String, OnnxTensor> bindOutputs() throws OrtException {
+        if (length + 1 > maxLength)
+            throw new IllegalStateException("KV cache length exceeds " + maxLength);
+        HashMap<String, OnnxTensor> outputs = new HashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            outputs.put(names[i].replace("past_key_values.", "present."),
+                    view(back[i], new long[]{rows, heads, length + 1, headDim}));
+        }
+        outputs.put("logits", view(logitsBuffer, new long[]{rows, 1, vocab}));
+        return outputs;
+    }
+
+    /** 这一步跑完后调用，下一步的第i行取自这一步输出的第parents[i]行 */
+    void commit(int[] parents) {
+        closeViews();
+        length++;
+        boolean identity = parents.length == rows;
+        for (int i = 0; identity && i < parents.length; i++) {
+            identity = parents[i] == i;
+        }
+        if (identity) {
+            ByteBuffer[] tmp = front;
+            front = back;
+            back = tmp;
+        } else {
+            int row_bytes = heads * length * headDim * 4;
+            for (int i = 0; i < names.length; i++) {
+                copyRows(back[i], front[i], parents, row_bytes);
+            }
+        }
+        rows = parents.length;
+    }
+
+    private static void copyRows(ByteBuffer src, ByteBuffer dst, int[] rows, int row_bytes) {
+        ByteBuffer s = src.duplicate();
+        ByteBuffer d = dst.duplicate();
+        d.clear();
+        for (int row : rows) {
+            s.limit(row * row_bytes + row_bytes);
+            s.position(row * row_bytes);
+            d.put(s);
+        }
+    }
+
+    private OnnxTensor view(ByteBuffer buffer, long[] shape) throws OrtException {
+        int bytes = 4;
+        for (long dim : shape) bytes *= (int) dim;
+        ByteBuffer slice = buffer.duplicate();
+        slice.clear();
+        slice.limit(bytes);
+        slice = slice.slice().order(ByteOrder.nativeOrder());
+        OnnxTensor tensor = base.create(slice, shape, OnnxJavaType.FLOAT);
+        views.add(tensor);
+        return tensor;
+    }
+
+    private void closeViews() {
+        for (OnnxTensor tensor : views) {
+            if (!tensor.isClosed()) tensor.close();
+        }
+        views.clear();
+    }
+
+    /** 已分配的总字节数（两份KV加logits），也就是这份缓存常驻的native内存 */
+    long getCapacityBytes() {
+        long bytes = logitsBuffer == null ? 0 : logitsBuffer.capacity();
+        for (int i = 0; i < front.length; i++) {
+            bytes += (long) front[i].capacity() + back[i].capacity();
+        }
+        return bytes;
+    }
+
+    /** batch用完时调用，只关掉这一步的tensor视图，缓冲区留给下一个batch */
+    @Override
+    public void close() {
+        closeViews();
+    }
+}
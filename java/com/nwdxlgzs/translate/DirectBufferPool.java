@@ -0,0 +1,172 @@
+package com.nwdxlgzs.translate;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import ai.onnxruntime.OnnxTensor;
+
+/**
+ * TensorBase用的direct ByteBuffer池，按大小分档复用：1MB以内按2的幂分档，再大的每个2的幂区间再细分成4档，
+ * 浪费不超过25%；超过MAX_POOLED_BUFFER_BYTES的不进池。
+ * allocateDirect很慢，而且要等GC跑了Cleaner才真正释放，解码时每步都有一堆小tensor，native内存会一路涨上去。
+ * 交给track()的buffer在包着它的OnnxTensor close之后回到池里（acquire时从最早借出的开始查几个），
+ * 没close就被GC掉的经ReferenceQueue直接丢弃，所以acquire的开销和借出去多少个无关。
+ */
+public class DirectBufferPool {
+    private static final int MIN_CLASS_BYTES = 64;
+    //这以下按2的幂分档
+    private static final int POW2_CLASS_LIMIT = 1 << 20;
+    private static final int MAX_POOLED_BUFFER_BYTES = 64 << 20;
+    //每次acquire最多检查几个借出去的buffer
+    private static final int RECLAIM_PROBES = 8;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocateDirect(0).order(ByteOrder.nativeOrder());
+    private static final DirectBufferPool DEFAULT = new DirectBufferPool(64L * 1024 * 1024);
+
+    private final long maxPooledBytes;
+    //档位容量 -> 这一档的空闲buffer
+    private final HashMap<Integer, ArrayDeque<ByteBuffer>> free = new HashMap<>();
+    //借出去的切片 -> 整块buffer
+    private final IdentityHashMap<ByteBuffer, ByteBuffer> leased = new IdentityHashMap<>();
+    //按借出顺序排，tensor一般也是按创建顺序close的
+    private final ArrayDeque<Lease> tracked = new ArrayDeque<>();
+    private final ReferenceQueue<OnnxTensor> collected = new ReferenceQueue<>();
+    private long pooledBytes = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+
+    /** @param max_pooled_bytes 池里最多留多少字节的空闲buffer，超出的直接丢给GC */
+    public DirectBufferPool(long max_pooled_bytes) {
+        this.maxPooledBytes = max_pooled_bytes;
+    }
+
+    /** 所有TensorBase默认共用的池 */
+    public static DirectBufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /** 取一块正好bytes大小、native序、position为0的buffer，内容不保证清零 */
+    public synchronized ByteBuffer acquire(int bytes) {
+        if (bytes == 0) {
+            hitCount++;
+            return EMPTY.duplicate().order(ByteOrder.nativeOrder());
+        }
+        if (bytes > MAX_POOLED_BUFFER_BYTES) {
+            missCount++;
+            return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+        }
+        reclaim();
+        int capacity = classCapacity(bytes);
+        ArrayDeque<ByteBuffer> blocks = free.get(capacity);
+        ByteBuffer block;
+        if (blocks != null && !blocks.isEmpty()) {
+            block = blocks.pop();
+            pooledBytes -= block.capacity();
+            hitCount++;
+        } else {
+            block = ByteBuffer.allocateDirect(capacity);
+            missCount++;
+        }
+        block.clear();
+        block.limit(bytes);
+        ByteBuffer slice = block.slice().order(ByteOrder.nativeOrder());
+        leased.put(slice, block);
+        return slice;
+    }
+
+    /** buffer交给owner使用，owner close之后自动回收 */
+    public synchronized void track(OnnxTensor owner, ByteBuffer buffer) {
+        if (leased.containsKey(buffer)) tracked.addLast(new Lease(owner, buffer, collected));
+    }
+
+    /** 没交给tensor的临时buffer用完直接还回来 */
+    public synchronized void release(ByteBuffer buffer) {
+        ByteBuffer block = leased.remove(buffer);
+        if (block == null) return;
+        if (pooledBytes + block.capacity() > maxPooledBytes) return;
+        ArrayDeque<ByteBuffer> blocks = free.get(block.capacity());
+        if (blocks == null) {
+            blocks = new ArrayDeque<>();
+            free.put(block.capacity(), blocks);
+        }
+        blocks.push(block);
+        pooledBytes += block.capacity();
+    }
+
+    private void reclaim() {
+        Reference<? extends OnnxTensor> ref;
+        while ((ref = collected.poll()) != null) {
+            //没close就被回收了，native那边可能还引用着这块内存，不能再借出去
+            Lease lease = (Lease) ref;
+            if (!lease.done) {
+                lease.done = true;
+                leased.remove(lease.buffer);
+            }
+        }
+        //只查最前面几个，还没close的挪到队尾；每次借出最多加一个，所以队列长度跟得上
+        for (int i = 0; i < RECLAIM_PROBES && !tracked.isEmpty(); i++) {
+            Lease lease = tracked.pollFirst();
+            if (lease.done) continue;
+            OnnxTensor owner = lease.get();
+            if (owner == null) {
+                //已经被回收，等ReferenceQueue处理
+                continue;
+            }
+            if (owner.isClosed()) {
+                lease.done = true;
+                lease.clear();
+                release(lease.buffer);
+            } else {
+                tracked.addLast(lease);
+            }
+        }
+    }
+
+    /** bytes所在档位的容量：1MB以内向上取2的幂，再大的取到2的幂的1/8的整数倍 */
+    static int classCapacity(int bytes) {
+        if (bytes <= MIN_CLASS_BYTES) return MIN_CLASS_BYTES;
+        int pow2 = Integer.highestOneBit(bytes - 1) << 1;
+        if (pow2 <= POW2_CLASS_LIMIT) return pow2;
+        int step = pow2 >>> 3;
+        return (bytes + step - 1) / step * step;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized double getHitRatio() {
+        long total = hitCount + missCount;
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /** 池里空闲buffer的总字节数 */
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    /** 还没还回来的buffer数 */
+    public synchronized int getLeasedCount() {
+        return leased.size();
+    }
+
+    private static class Lease extends WeakReference<OnnxTensor> {
+        final ByteBuffer buffer;
+        //已经回到池里或者已经丢弃
+        boolean done = false;
+
+        Lease(OnnxTensor owner, ByteBuffer buffer, ReferenceQueue<OnnxTensor> queue) {
+            super(owner, queue);
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.nwdxlgzs.translate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ai.onnxruntime.OrtException;
+
+/**
+ * 长文档翻译：按段落和句子切开，太长的句子再按逗号、空白或者硬切到不超过max_segment_tokens个token，
+ * 相邻的max_batch_size段凑一批交给Polyglots.translateBatch，多批在线程池上并行（多组session时各批落到不同session上）。
+ * 切分时各段之间的空白和换行原样保留，译文按原顺序拼回去，所以段落结构不变。
+ * 流式版本按文档顺序回调：前面的段都好了就立刻推出去，不等整篇翻完。
+ */
+public class DocumentTranslator implements AutoCloseable {
+    private final Polyglots polyglots;
+    private final int maxSegmentTokens;
+    private final int maxBatchSize;
+    private final Executor executor;
+    //自己建的线程池，close时关掉；外部传进来的不归这里管
+    private final ExecutorService ownedExecutor;
+
+    /** 每段最多100个token，每批8段，并行度见defaultParallelism */
+    public DocumentTranslator(Polyglots polyglots) {
+        this(polyglots, 100, 8, defaultParallelism(polyglots));
+    }
+
+    /**
+     * session组数和CPU核数的一半取大的：只有一组session时几批也能同时跑（OrtSession.run可以并发调用），
+     * 一批在等ORT的时候另一批在分词、挑beam，核不会闲着；多组session时每组至少分到一批
+     */
+    static int defaultParallelism(Polyglots polyglots) {
+        return Math.max(polyglots.getSessionCount(), Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    public DocumentTranslator(Polyglots polyglots, int max_segment_tokens, int max_batch_size, int parallelism) {
+        this(polyglots, max_segment_tokens, max_batch_size, newExecutor(parallelism), true);
+    }
+
+    public DocumentTranslator(Polyglots polyglots, int max_segment_tokens, int max_batch_size, Executor executor) {
+        this(polyglots, max_segment_tokens, max_batch_size, executor, false);
+    }
+
+    private DocumentTranslator(Polyglots polyglots, int max_segment_tokens, int max_batch_size, Executor executor, boolean owned) {
+        if (max_segment_tokens < 1) throw new IllegalArgumentException("max_segment_tokens < 1");
+        if (max_batch_size < 1) throw new IllegalArgumentException("max_batch_size < 1");
+        this.polyglots = polyglots;
+        this.maxSegmentTokens = max_segment_tokens;
+        this.maxBatchSize = max_batch_size;
+        this.executor = executor;
+        this.ownedExecutor = owned ? (ExecutorService) executor : null;
+    }
+
+    private static ExecutorService newExecutor(int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("parallelism < 1");
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "DocumentTranslator-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public String translate(String text, String src_lang, String tgt_lang) throws OrtException {
+        return translate(text, src_lang, tgt_lang, polyglots.generationConfig, null);
+    }
+
+    /**
+     * listener不为null时每翻好一段（连同它前面的空白）就推一次，在调用translate的线程上按文档顺序回调，
+     * 所有片段拼起来等于返回值
+     */
+    public String translate(String text, String src_lang, String tgt_lang, TranslateListener listener) throws OrtException {
+        return translate(text, src_lang, tgt_lang, polyglots.generationConfig, listener);
+    }
+
+    public String translate(String text, final String src_lang, final String tgt_lang, final GenerationConfig generation_config,
+                            TranslateListener listener) throws OrtException {
+        polyglots.tokenizer.getLangId(src_lang);
+        polyglots.tokenizer.getLangId(tgt_lang);
+        List<Segment> segments = split(text == null ? "" : text);
+        //只有content非空的段要翻译，按文档顺序每maxBatchSize段一批
+        List<List<Segment>> batches = new ArrayList<>();
+        List<Segment> current = new ArrayList<>();
+        for (Segment segment : segments) {
+            if (segment.content.isEmpty()) continue;
+            current.add(segment);
+            if (current.size() == maxBatchSize) {
+                batches.add(current);
+                current = new ArrayList<>();
+            }
+        }
+        if (!current.isEmpty()) batches.add(current);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (final List<Segment> batch : batches) {
+            futures.add(CompletableFuture.runAsync(() -> {
+                List<String> texts = new ArrayList<>();
+                for (Segment segment : batch) {
+                    texts.add(segment.content);
+                }
+                try {
+                    List<String> results = polyglots.translateBatch(texts, src_lang, tgt_lang, generation_config.maxLength,
+                            generation_config.numBeams, generation_config.topK, true);
+                    for (int i = 0; i < batch.size(); i++) {
+                        batch.get(i).translation = results.get(i);
+                    }
+                } catch (OrtException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor));
+        }
+        StringBuilder result = new StringBuilder();
+        int next = 0;
+        try {
+            for (int b = 0; b <= batches.size(); b++) {
+                //最后一轮把最后一批之后只剩空白的段也推出去
+                Segment last = b < batches.size() ? batches.get(b).get(batches.get(b).size() - 1) : null;
+                if (last != null) futures.get(b).join();
+                StringBuilder piece = new StringBuilder();
+                while (next < segments.size()) {
+                    Segment segment = segments.get(next++);
+                    piece.append(segment.glue);
+                    if (!segment.content.isEmpty()) piece.append(segment.translation);
+                    if (segment == last) break;
+                }
+                result.append(piece);
+                if (listener != null && piece.length() > 0) listener.onPartial(piece.toString());
+            }
+        } catch (CompletionException e) {
+            for (CompletableFuture<Void> future : futures) {
+                future.cancel(false);
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof OrtException) throw (OrtException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw e;
+        }
+        return result.toString();
+    }
+
+    /** 一段原文：glue是它前面的空白/换行，原样保留；content为空的段只有glue（比如文末的空白） */
+    static class Segment {
+        final String glue;
+        final String content;
+        String translation;
+
+        Segment(String glue, String content) {
+            this.glue = glue;
+            this.content = content;
+        }
+    }
+
+    /** 先按换行和句末标点切，超过maxSegmentTokens的句子再细切 */
+    List<Segment> split(String text) {
+        List<Segment> segments = new ArrayList<>();
+        int n = text.length();
+        int i = 0;
+        while (i < n) {
+            int glue_start = i;
+            while (i < n && Character.isWhitespace(text.charAt(i))) i++;
+            String glue = text.substring(glue_start, i);
+            int start = i;
+            while (i < n) {
+                char c = text.charAt(i);
+                if (c == '\n' || c == '\r') break;
+                i++;
+                if (isSentenceEnd(c)) {
+                    while (i < n && isCloser(text.charAt(i))) i++;
+                    //CJK句号后面一般不跟空格；西文句号后面要有空白才算句末，避免切开3.14、e.g.这种
+                    if (isCjkSentenceEnd(c) || i == n || Character.isWhitespace(text.charAt(i))) break;
+                }
+            }
+            int end = i;
+            while (end > start && Character.isWhitespace(text.charAt(end - 1))) end--;
+            //句子末尾的空白留给下一段当glue
+            i = end;
+            splitLong(segments, glue, text.substring(start, end));
+        }
+        if (segments.isEmpty()) segments.add(new Segment("", ""));
+        return segments;
+    }
+
+    /** content太长时找离中间最近的切点一分为二，优先级：分句标点 > 空白 > 直接切 */
+    private void splitLong(List<Segment> segments, String glue, String content) {
+        if (content.length() <= 1 || polyglots.tokenizer.countTokens(content) <= maxSegmentTokens) {
+            segments.add(new Segment(glue, content));
+            return;
+        }
+        int mid = content.length() / 2;
+        int cut = -1;
+        for (int i = 1; i < content.length(); i++) {
+            if (isClauseEnd(content.charAt(i - 1)) && Math.abs(i - mid) < Math.abs(cut - mid)) cut = i;
+        }
+        if (cut < 0) {
+            for (int i = 1; i < content.length(); i++) {
+                if (Character.isWhitespace(content.charAt(i)) && Math.abs(i - mid) < Math.abs(cut - mid)) cut = i;
+            }
+        }
+        if (cut < 0) {
+            cut = mid;
+            if (Character.isLowSurrogate(content.charAt(cut))) cut++;
+            if (cut >= content.length()) cut = mid - 1;
+        }
+        int left_end = cut;
+        while (left_end > 0 && Character.isWhitespace(content.charAt(left_end - 1))) left_end--;
+        int right_start = cut;
+        while (right_start < content.length() && Character.isWhitespace(content.charAt(right_start))) right_start++;
+        if (left_end == 0 || right_start == content.length()) {
+            //切点两边有一边全是空白，没法再切
+            segments.add(new Segment(glue, content));
+            return;
+        }
+        splitLong(segments, glue, content.substring(0, left_end));
+        splitLong(segments, content.substring(left_end, right_start), content.substring(right_start));
+    }
+
+    private static boolean isSentenceEnd(char c) {
+        return c == '.' || c == '!' || c == '?' || c == ';' || c == '…' || isCjkSentenceEnd(c);
+    }
+
+    private static boolean isCjkSentenceEnd(char c) {
+        return c == '。' || c == '！' || c == '？' || c == '；';
+    }
+
+    private static boolean isClauseEnd(char c) {
+        return c == ',' || c == ':' || c == '，' || c == '、' || c == '：';
+    }
+
+    private static boolean isCloser(char c) {
+        return c == '"' || c == '\'' || c == ')' || c == ']' || c == '”' || c == '’' || c == '）' || c == '」' || c == '』';
+    }
+
+    @Override
+    public void close() {
+        if (ownedExecutor != null) ownedExecutor.shutdown();
+    }
+}
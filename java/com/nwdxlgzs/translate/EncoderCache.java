@@ -0,0 +1,179 @@
+package com.nwdxlgzs.translate;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+
+import ai.onnxruntime.OnnxTensor;
+
+/**
+ * 按(原文, 源语言)缓存encoder的结果：last_hidden_state、attention_mask，以及第0步decoder算出来的cross-attention kv（present.*.encoder.*）。
+ * 同一句翻成多种语言、或者反复翻译热门文本时，命中后encoder和第0步的cross-attention投影都不用再跑。
+ * 按字节数做LRU，条目的tensor归缓存所有；正在被解码的条目有引用计数，淘汰时等最后一个使用者release后才close。
+ */
+public class EncoderCache {
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes;
+    private long sizeBytes = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+
+    /** @param max_bytes 缓存的tensor总字节数上限，0表示不缓存 */
+    public EncoderCache(long max_bytes) {
+        this.maxBytes = max_bytes;
+    }
+
+    /** 命中时返回已经retain过的条目，用完必须release */
+    synchronized Entry acquire(String text, String src_lang) {
+        Entry entry = entries.get(new Key(text, src_lang));
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        entry.refs++;
+        return entry;
+    }
+
+    /**
+     * 把一行encoder结果交给缓存，tensor的所有权随之转移。返回的条目已经替调用方retain过，用完必须release；
+     * 单条就超过上限时不进缓存，最后一次release时直接close
+     */
+    synchronized Entry put(String text, String src_lang, OnnxTensor attention_mask, OnnxTensor last_hidden_state,
+                           HashMap<String, OnnxTensor> encoder_past_key_values) {
+        Entry entry = new Entry(this, attention_mask, last_hidden_state, encoder_past_key_values);
+        entry.refs = 1;
+        if (entry.bytes > maxBytes) return entry;
+        Entry old = entries.put(new Key(text, src_lang), entry);
+        if (old != null) {
+            sizeBytes -= old.bytes;
+            old.releaseLocked();
+        }
+        entry.refs++;
+        sizeBytes += entry.bytes;
+        trim();
+        return entry;
+    }
+
+    synchronized void release(Entry entry) {
+        entry.releaseLocked();
+    }
+
+    private void trim() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (sizeBytes > maxBytes && it.hasNext()) {
+            Entry entry = it.next();
+            it.remove();
+            sizeBytes -= entry.bytes;
+            evictionCount++;
+            entry.releaseLocked();
+        }
+    }
+
+    public synchronized void setMaxBytes(long max_bytes) {
+        this.maxBytes = max_bytes;
+        trim();
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /** 清空缓存，正在使用中的条目等使用者release后再close */
+    public synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            entry.releaseLocked();
+        }
+        entries.clear();
+        sizeBytes = 0;
+    }
+
+    public synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /** 分词器只按空格切词，首尾空白和连续空格不影响token，归一化成同一个key */
+    static String normalize(String text) {
+        return text.trim().replaceAll(" +", " ");
+    }
+
+    static long bytesOf(OnnxTensor tensor) {
+        long n = tensor.getInfo().type.size;
+        for (long dim : tensor.getInfo().getShape()) n *= dim;
+        return n;
+    }
+
+    static final class Entry {
+        private final EncoderCache cache;
+        final OnnxTensor attentionMask;
+        final OnnxTensor lastHiddenState;
+        final HashMap<String, OnnxTensor> encoderPastKeyValues;
+        final long bytes;
+        private int refs = 0;
+
+        private Entry(EncoderCache cache, OnnxTensor attentionMask, OnnxTensor lastHiddenState,
+                      HashMap<String, OnnxTensor> encoderPastKeyValues) {
+            this.cache = cache;
+            this.attentionMask = attentionMask;
+            this.lastHiddenState = lastHiddenState;
+            this.encoderPastKeyValues = encoderPastKeyValues;
+            long total = bytesOf(attentionMask) + bytesOf(lastHiddenState);
+            for (OnnxTensor tensor : encoderPastKeyValues.values()) {
+                total += bytesOf(tensor);
+            }
+            this.bytes = total;
+        }
+
+        void release() {
+            cache.release(this);
+        }
+
+        private void releaseLocked() {
+            if (--refs > 0) return;
+            attentionMask.close();
+            lastHiddenState.close();
+            Polyglots.closeMapTensors(encoderPastKeyValues);
+        }
+    }
+
+    private static final class Key {
+        final String text;
+        final String srcLang;
+
+        Key(String text, String srcLang) {
+            this.text = normalize(text);
+            this.srcLang = srcLang;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return text.equals(other.text) && Objects.equals(srcLang, other.srcLang);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(text, srcLang);
+        }
+    }
+}
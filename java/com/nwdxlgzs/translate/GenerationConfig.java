@@ -0,0 +1,55 @@
+package com.nwdxlgzs.translate;
+
+/**
+ * 解码参数，加载时从generation_config.json解析一次（Polyglots.generationConfig），解码循环直接读字段。
+ * 不可变，单次请求要改参数时用with*拿一份副本传给translate。
+ * 目前只实现了max_length/num_beams/top_k和起始、结束token，generation_config里的其他项不起作用。
+ */
+public final class GenerationConfig {
+    public final int maxLength;
+    public final int numBeams;
+    public final int topK;
+    //decoder第0步的输入
+    public final long decoderStartTokenId;
+    public final long eosTokenId;
+
+    public GenerationConfig(int maxLength, int numBeams, int topK, long decoderStartTokenId, long eosTokenId) {
+        if (maxLength < 1) throw new IllegalArgumentException("max_length < 1");
+        if (numBeams < 1) throw new IllegalArgumentException("num_beams < 1");
+        if (topK < 1) throw new IllegalArgumentException("top_k < 1");
+        this.maxLength = maxLength;
+        this.numBeams = numBeams;
+        this.topK = topK;
+        this.decoderStartTokenId = decoderStartTokenId;
+        this.eosTokenId = eosTokenId;
+    }
+
+    /** 配置里没写的token id用tokenizer的</s> */
+    public static GenerationConfig from(M2MConfig config, M2M100TokenizerFast tokenizer) {
+        long eos_token_id = config.Config_getLong("eos_token_id", tokenizer.eosTokenId);
+        return new GenerationConfig(
+                config.Config_getInt("max_length", 200),
+                config.Config_getInt("num_beams", 5),
+                config.Config_getInt("top_k", 50),
+                config.Config_getLong("decoder_start_token_id", eos_token_id),
+                eos_token_id);
+    }
+
+    public GenerationConfig withMaxLength(int maxLength) {
+        return new GenerationConfig(maxLength, numBeams, topK, decoderStartTokenId, eosTokenId);
+    }
+
+    public GenerationConfig withNumBeams(int numBeams) {
+        return new GenerationConfig(maxLength, numBeams, topK, decoderStartTokenId, eosTokenId);
+    }
+
+    public GenerationConfig withTopK(int topK) {
+        return new GenerationConfig(maxLength, numBeams, topK, decoderStartTokenId, eosTokenId);
+    }
+
+    @Override
+    public String toString() {
+        return "GenerationConfig{maxLength=" + maxLength + ", numBeams=" + numBeams + ", topK=" + topK
+                + ", decoderStartTokenId=" + decoderStartTokenId + ", eosTokenId=" + eosTokenId + "}";
+    }
+}
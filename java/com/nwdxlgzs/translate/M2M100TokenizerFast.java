@@ -5,6 +5,8 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -17,19 +19,24 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONException;
 
+/**
+ * 除了srcLang以外没有可变状态，可以多个线程共用：bpe缓存分段加锁，merge表的工作数组每个线程一份。
+ * srcLang是setSrcLang设置、call(String)读取的一份共享状态，多线程时不要用这两个，
+ * 改用callWithSrcLangOnce或者显式传srcLang的call，Polyglots内部只用这两个
+ */
 public class M2M100TokenizerFast {
-    private JSONObject cfg;
-    private Map<String, Long> vocab;
-    private Map<Long, String> idsToTokens;
+    private VocabStore vocab;
+    //specialStrs里的token在词表里的id，解码时按id跳过，不用先转成字符串
+    private BitSet specialIds;
     public long unkTokenId;
     public long padTokenId;
     public long bosTokenId;
     public long eosTokenId;
     private Map<String, Long> langCodeToId;
-    private List<String[]> merges;
-    private Map<String, Long> bpeRanks;
+    private BpeMergeTable bpeMerges;
+    private final BpeWordCache bpeCache = new BpeWordCache(16384);
     private Set<String> specialStrs;
-    private String srcLang;
+    private volatile String srcLang;
 
     public M2M100TokenizerFast(String tokenizerJson) throws IOException, JSONException {
         // 读取 JSON 文件
@@ -46,22 +53,21 @@ public class M2M100TokenizerFast {
             }
             tokenizerJsonContent = new String(bytes);
         }
-        this.cfg = new JSONObject(tokenizerJsonContent);
+        //解析出来的整棵树只在构造时用，不留成字段
+        JSONObject cfg = new JSONObject(tokenizerJsonContent);
 
         // 初始化词汇表
         JSONObject model = cfg.getJSONObject("model");
         JSONObject vocabJson = model.getJSONObject("vocab");
-        this.vocab = new HashMap<>();
-        this.idsToTokens = new HashMap<>();
+        VocabStore.Builder vocabBuilder = new VocabStore.Builder();
 
         // 使用迭代器而不是增强for循环
         Iterator<String> keys = vocabJson.keys();
         while (keys.hasNext()) {
             String key = keys.next();
-            long value = vocabJson.getLong(key);
-            vocab.put(key, value);
-            idsToTokens.put(value, key);
+            vocabBuilder.put(key, vocabJson.getLong(key));
         }
+        this.vocab = vocabBuilder.build();
 
         // 初始化特殊标记
         this.langCodeToId = new HashMap<>();
@@ -87,16 +93,72 @@ public class M2M100TokenizerFast {
             }
         }
 
-        // 初始化合并规则
+        // 初始化合并规则，编译成整数表
         JSONArray mergesArray = model.getJSONArray("merges");
-        this.merges = new ArrayList<>();
-        this.bpeRanks = new HashMap<>();
+        List<String[]> merges = new ArrayList<>();
         for (int i = 0; i < mergesArray.length(); i++) {
             String merge = mergesArray.getString(i);
-            String[] parts = merge.split(" ");
-            merges.add(parts);
-            bpeRanks.put(parts[0] + " " + parts[1], (long) i);
+            merges.add(merge.split(" "));
         }
+        this.bpeMerges = new BpeMergeTable(vocab, merges, unkTokenId);
+        this.specialIds = specialIds(vocab, specialStrs);
+    }
+
+    /** 从TokenizerSnapshot加载 */
+    M2M100TokenizerFast(VocabStore vocab,
+                        long unkTokenId, long padTokenId, long bosTokenId, long eosTokenId,
+                        Map<String, Long> langCodeToId, Set<String> specialStrs, BpeMergeTable bpeMerges) {
+        this.vocab = vocab;
+        this.unkTokenId = unkTokenId;
+        this.padTokenId = padTokenId;
+        this.bosTokenId = bosTokenId;
+        this.eosTokenId = eosTokenId;
+        this.langCodeToId = langCodeToId;
+        this.specialStrs = specialStrs;
+        this.bpeMerges = bpeMerges;
+        this.specialIds = specialIds(vocab, specialStrs);
+    }
+
+    private static BitSet specialIds(VocabStore vocab, Set<String> specialStrs) {
+        BitSet ids = new BitSet();
+        for (String special : specialStrs) {
+            long id = vocab.get(special);
+            if (id >= 0) ids.set((int) id);
+        }
+        return ids;
+    }
+
+    VocabStore getVocab() {
+        return vocab;
+    }
+
+    Map<String, Long> getLangCodeToId() {
+        return langCodeToId;
+    }
+
+    Set<String> getSpecialStrs() {
+        return specialStrs;
+    }
+
+    BpeMergeTable getBpeMerges() {
+        return bpeMerges;
+    }
+
+    /** 词级bpe缓存的容量（词数），所有调用线程共享，0表示不缓存 */
+    public void setBpeCacheCapacity(int capacity) {
+        bpeCache.setCapacity(capacity);
+    }
+
+    public int getBpeCacheSize() {
+        return bpeCache.size();
+    }
+
+    public long getBpeCacheHitCount() {
+        return bpeCache.getHitCount();
+    }
+
+    public long getBpeCacheMissCount() {
+        return bpeCache.getMissCount();
     }
 
     public String getSrcLang() {
@@ -128,67 +190,98 @@ public class M2M100TokenizerFast {
     }
 
     public Map<String, Object> call(List<String> texts, String srcLang) {
-        if (texts.size() != 1)
-            throw new UnsupportedOperationException("Batch processing not implemented");
-        String text = texts.get(0);
         if (srcLang == null)
             throw new IllegalStateException("srcLang not set");
-        long langId = getLangId(srcLang);
-        List<Long> tokenIds = tokenize(text);
-        long[] inputIds = new long[tokenIds.size() + 2];
-        inputIds[0] = langId;
-        for (int i = 0; i < tokenIds.size(); i++) {
-            inputIds[i + 1] = tokenIds.get(i);
+        return call(texts, Collections.nCopies(texts.size(), srcLang));
+    }
+
+    /** 每句可以是不同的源语言 */
+    public Map<String, Object> call(List<String> texts, List<String> srcLangs) {
+        if (texts.isEmpty())
+            throw new IllegalArgumentException("texts is empty");
+        if (texts.size() != srcLangs.size())
+            throw new IllegalArgumentException("texts/srcLangs size mismatch");
+        List<long[]> tokenIdsList = new ArrayList<>();
+        int maxLen = 0;
+        for (String text : texts) {
+            long[] tokenIds = tokenize(text);
+            tokenIdsList.add(tokenIds);
+            maxLen = Math.max(maxLen, tokenIds.length + 2);
+        }
+        // 右侧补padTokenId对齐到最长的一句，padding位置attention_mask为0
+        long[][] inputIds = new long[texts.size()][maxLen];
+        long[][] attentionMask = new long[texts.size()][maxLen];
+        for (int b = 0; b < texts.size(); b++) {
+            long[] tokenIds = tokenIdsList.get(b);
+            int len = tokenIds.length + 2;
+            Arrays.fill(inputIds[b], padTokenId);
+            inputIds[b][0] = getLangId(srcLangs.get(b));
+            System.arraycopy(tokenIds, 0, inputIds[b], 1, tokenIds.length);
+            inputIds[b][len - 1] = eosTokenId;
+            Arrays.fill(attentionMask[b], 0, len, 1);
         }
-        inputIds[inputIds.length - 1] = eosTokenId;
-        long[] attentionMask = new long[inputIds.length];
-        Arrays.fill(attentionMask, 1);
         Map<String, Object> result = new HashMap<>();
-        result.put("input_ids", new long[][]{inputIds});
-        result.put("attention_mask", new long[][]{attentionMask});
+        result.put("input_ids", inputIds);
+        result.put("attention_mask", attentionMask);
         return result;
     }
 
     public String decode(long[] sequence, boolean skipSpecialTokens) {
-        List<String> tokens = new ArrayList<>();
-        for (long id : sequence) {
-            tokens.add(idsToTokens.get(id));
-        }
-        if (skipSpecialTokens) {
-            List<String> toRemove = new ArrayList<>();
-            for (String token : tokens) {
-                if (specialStrs.contains(token)) {
-                    toRemove.add(token);
-                }
-            }
-            tokens.removeAll(toRemove);
-        }
         StringBuilder joined = new StringBuilder();
-        for (String token : tokens) {
-            joined.append(token);
+        for (long id : sequence) {
+            appendToken(joined, id, skipSpecialTokens);
         }
-        return joined.toString().replace("▁", " ").trim();
+        return joined.toString().trim();
     }
 
     public String decode(List<Long> sequence, boolean skipSpecialTokens) {
-        List<String> tokens = new ArrayList<>();
+        StringBuilder joined = new StringBuilder();
         for (long id : sequence) {
-            tokens.add(idsToTokens.get(id));
+            appendToken(joined, id, skipSpecialTokens);
+        }
+        return joined.toString().trim();
+    }
+
+    /** 直接从词表的字符池拷到sb，'▁'换成空格；不在词表里的id和原来一样拼成"null" */
+    private void appendToken(StringBuilder sb, long id, boolean skipSpecialTokens) {
+        if (!vocab.contains(id)) {
+            sb.append("null");
+            return;
         }
-        if (skipSpecialTokens) {
-            List<String> toRemove = new ArrayList<>();
-            for (String token : tokens) {
-                if (specialStrs.contains(token)) {
-                    toRemove.add(token);
+        if (skipSpecialTokens && specialIds.get((int) id)) return;
+        vocab.appendDecoded(sb, id);
+    }
+
+    public StreamDecoder newStreamDecoder() {
+        return new StreamDecoder();
+    }
+
+    /**
+     * 增量解码：每次只把新增的token转成文本，特殊token跳过，
+     * 各次返回的片段拼起来等于decode(sequence, true)（末尾空白除外）
+     */
+    public class StreamDecoder {
+        private int consumed = 0;
+        private boolean started = false;
+
+        /** tokens是到目前为止确定下来的完整序列，返回自上次调用以来新增的文本 */
+        public String next(List<Long> tokens) {
+            StringBuilder delta = new StringBuilder();
+            for (; consumed < tokens.size(); consumed++) {
+                long id = tokens.get(consumed);
+                if (!vocab.contains(id) || specialIds.get((int) id)) continue;
+                int start = delta.length();
+                vocab.appendDecoded(delta, id);
+                if (!started) {
+                    int i = start;
+                    while (i < delta.length() && Character.isWhitespace(delta.charAt(i))) i++;
+                    delta.delete(start, i);
+                    if (delta.length() == start) continue;
+                    started = true;
                 }
             }
-            tokens.removeAll(toRemove);
+            return delta.toString();
         }
-        StringBuilder joined = new StringBuilder();
-        for (String token : tokens) {
-            joined.append(token);
-        }
-        return joined.toString().replace("▁", " ").trim();
     }
 
     public List<String> batchDecode(long[][] sequences, boolean skipSpecialTokens) {
@@ -207,116 +300,53 @@ public class M2M100TokenizerFast {
         return results;
     }
 
-    private List<Long> tokenize(String text) {
+    /** text分词后的token数，不含语言token和</s> */
+    int countTokens(String text) {
+        return tokenize(text).length;
+    }
+
+    private long[] tokenize(String text) {
         String[] words = text.trim().split(" ");
-        List<Long> ids = new ArrayList<>();
+        long[] ids = new long[Math.max(16, text.length())];
+        int count = 0;
         for (String w : words) {
             if (w.isEmpty()) continue;
-            ids.addAll(bpeWord("▁" + w));
-        }
-        return ids;
-    }
-
-    private List<Long> bpeWord(String word) {
-        List<String> characters = new ArrayList<>();
-        for (int i = 0; i < word.length(); i++) {
-            characters.add(String.valueOf(word.charAt(i)));
-        }
-
-        Set<String[]> pairs = getPairs(characters);
-        if (pairs.isEmpty()) {
-            List<Long> result = new ArrayList<>();
-            Long id = vocab.get(characters.get(0));
-            if (id == null) {
-                id = unkTokenId;
+            long[] cached = bpeCache.get(w);
+            if (cached != null) {
+                if (count + cached.length > ids.length)
+                    ids = Arrays.copyOf(ids, Math.max(count + cached.length, ids.length * 2));
+                System.arraycopy(cached, 0, ids, count, cached.length);
+                count += cached.length;
+                continue;
             }
-            result.add(id);
-            return result;
-        }
-
-        while (true) {
-            // 找到优先级最高的对
-            String[] bigram = null;
-            long minRank = Long.MAX_VALUE;
-            for (String[] pair : pairs) {
-                String key = pair[0] + " " + pair[1];
-                Long rank = bpeRanks.get(key);
-                if (rank == null) {
-                    rank = Long.MAX_VALUE;
-                }
-                if (rank < minRank) {
-                    minRank = rank;
-                    bigram = pair;
-                }
+            int n = bpeMerges.encode("▁" + w, ids, count);
+            if (n < 0) {
+                ids = Arrays.copyOf(ids, Math.max(-n, ids.length * 2));
+                n = bpeMerges.encode("▁" + w, ids, count);
             }
-
-            if (bigram == null || minRank == Long.MAX_VALUE) {
-                break;
-            }
-
-            String first = bigram[0];
-            String second = bigram[1];
-            List<String> newWord = new ArrayList<>();
-            int i = 0;
-
-            while (i < characters.size()) {
-                int j = indexOf(characters, first, i);
-                if (j == -1) {
-                    for (int k = i; k < characters.size(); k++) {
-                        newWord.add(characters.get(k));
-                    }
-                    break;
-                }
-                for (int k = i; k < j; k++) {
-                    newWord.add(characters.get(k));
-                }
-                i = j;
-
-                if (i < characters.size() - 1 &&
-                        characters.get(i).equals(first) &&
-                        characters.get(i + 1).equals(second)) {
-                    newWord.add(first + second);
-                    i += 2;
-                } else {
-                    newWord.add(characters.get(i));
-                    i += 1;
-                }
-            }
-
-            characters = newWord;
-            if (characters.size() == 1) break;
-            pairs = getPairs(characters);
+            bpeCache.put(w, Arrays.copyOfRange(ids, count, count + n));
+            count += n;
         }
-
-        List<Long> wordIds = new ArrayList<>();
-        for (String token : characters) {
-            Long id = vocab.get(token);
-            if (id == null) {
-                id = unkTokenId;
-            }
-            wordIds.add(id);
-        }
-        return wordIds;
+        return Arrays.copyOf(ids, count);
     }
 
-    private int indexOf(List<String> list, String value, int fromIndex) {
-        for (int i = fromIndex; i < list.size(); i++) {
-            if (list.get(i).equals(value)) {
-                return i;
-            }
-        }
-        return -1;
+    public static M2M100TokenizerFast fromPretrained(String path) throws IOException, JSONException {
+        return fromPretrained(path, new File(path, "tokenizer.snapshot"));
     }
 
-    private Set<String[]> getPairs(List<String> word) {
-        Set<String[]> pairs = new HashSet<>();
-        for (int i = 0; i < word.size() - 1; i++) {
-            pairs.add(new String[]{word.get(i), word.get(i + 1)});
+    /**
+     * 优先从二进制快照加载；快照不存在、和tokenizer.json对不上或者损坏时读JSON，再顺手重新生成快照。
+     * 模型目录只读时可以把snapshot指到缓存目录，生成失败不影响加载
+     */
+    public static M2M100TokenizerFast fromPretrained(String path, File snapshot) throws IOException, JSONException {
+        File json = new File(path, "tokenizer.json");
+        M2M100TokenizerFast tokenizer = TokenizerSnapshot.read(snapshot, json);
+        if (tokenizer != null) return tokenizer;
+        tokenizer = new M2M100TokenizerFast(json.getPath());
+        try {
+            TokenizerSnapshot.write(tokenizer, snapshot, json);
+        } catch (IOException ignored) {
         }
-        return pairs;
-    }
-
-    public static M2M100TokenizerFast fromPretrained(String path) throws IOException, JSONException {
-        return new M2M100TokenizerFast(new File(path, "tokenizer.json").getPath());
+        return tokenizer;
     }
 }
\ No newline at end of file
@@ -72,11 +72,21 @@ public class M2MConfig extends HashMap<String, Object> {
         }
     }
 
+    /** key不存在或者值是null时返回defaultValue */
     public Object Config_get(String key, Object defaultValue) {
-        if (!containsKey(key)) {
-            return get(key);
-        }
-        return defaultValue;
+        Object value = get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    /** JSON里的数字可能是Integer/Long/Double，统一转换，不是数字时返回defaultValue */
+    public int Config_getInt(String key, int defaultValue) {
+        Object value = get(key);
+        return value instanceof Number ? ((Number) value).intValue() : defaultValue;
+    }
+
+    public long Config_getLong(String key, long defaultValue) {
+        Object value = get(key);
+        return value instanceof Number ? ((Number) value).longValue() : defaultValue;
     }
 
     private static Object toJavaObject(Object json) throws JSONException {
@@ -23,11 +23,22 @@ import ai.onnxruntime.TensorInfo;
 
 public class M2MDecoder extends TensorBase {
     private volatile OrtSession session;
-    private final String modelPath;
+    private final ModelSource modelSource;
+    private final SessionConfig sessionConfig;
 
     public M2MDecoder(OrtEnvironment env, String encoder_onnx) {
+        this(env, encoder_onnx, SessionConfig.DEFAULT);
+    }
+
+    public M2MDecoder(OrtEnvironment env, String encoder_onnx, SessionConfig session_config) {
+        this(env, ModelSource.fromFile(encoder_onnx), session_config);
+    }
+
+    /** 比如ModelSource.fromAsset直接用APK里的模型，不用先拷到files目录 */
+    public M2MDecoder(OrtEnvironment env, ModelSource model_source, SessionConfig session_config) {
         super(env);
-        modelPath = encoder_onnx;
+        modelSource = model_source;
+        sessionConfig = session_config;
     }
 
     public HashMap<String, OnnxTensor> predict(OnnxTensor input_ids,
@@ -35,6 +46,21 @@ public class M2MDecoder extends TensorBase {
                                                OnnxTensor encoder_hidden_states,
                                                boolean use_cache_branch,
                                                HashMap<String, OnnxTensor> past_key_values) throws OrtException {
+        return predict(input_ids, encoder_attention_mask, encoder_hidden_states, use_cache_branch, past_key_values,
+                Collections.<String>emptySet(), Collections.<String, OnnxTensor>emptyMap());
+    }
+
+    /**
+     * pinned_outputs里的输出直接写进调用方预分配好的tensor（形状必须和这一步的输出一致），不会出现在返回值里；
+     * pinned_outputs不为空时只计算pinned_outputs和requested_outputs里的输出，其余的（比如用不上的present.*.encoder.*）直接不要
+     */
+    public HashMap<String, OnnxTensor> predict(OnnxTensor input_ids,
+                                               OnnxTensor encoder_attention_mask,
+                                               OnnxTensor encoder_hidden_states,
+                                               boolean use_cache_branch,
+                                               HashMap<String, OnnxTensor> past_key_values,
+                                               Set<String> requested_outputs,
+                                               Map<String, OnnxTensor> pinned_outputs) throws OrtException {
 //        long st=System.currentTimeMillis();
         OrtSession ortSession = getSession();
         HashMap<String, OnnxTensor> inputs = new HashMap<>();
@@ -54,10 +80,12 @@ public class M2MDecoder extends TensorBase {
                 }
             }
         }
-        OrtSession.Result result = ortSession.run(inputs);
+        OrtSession.Result result = pinned_outputs.isEmpty() ? ortSession.run(inputs)
+                : ortSession.run(inputs, requested_outputs, pinned_outputs);
         HashMap<String, OnnxTensor> outputs = new HashMap<>();
         for (Map.Entry<String, OnnxValue> entry : result) {
             String name = entry.getKey();
+            if (pinned_outputs.containsKey(name)) continue;
             OnnxValue value = entry.getValue();
             if (value instanceof OnnxTensor) {
                 outputs.put(name, (OnnxTensor) value);
@@ -71,19 +99,21 @@ public class M2MDecoder extends TensorBase {
         return outputs;
     }
 
+    /** 现在就创建session，不等第一次predict；已经创建过时直接返回 */
+    public void load() {
+        getSession();
+    }
+
+    public boolean isLoaded() {
+        return session != null;
+    }
+
     private OrtSession getSession() {
         if (session == null) {
             synchronized (this) {
                 if (session == null) {
                     try {
-                        OrtSession.SessionOptions options = new OrtSession.SessionOptions();
-                        options.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.ALL_OPT);
-                        try {
-                            options.addNnapi();
-                        } catch (OrtException e) {
-                            options.addCPU(true);
-                        }
-                        session = ortEnv.createSession(modelPath, options);
+                        session = createSession(modelSource, sessionConfig);
                     } catch (Exception e) {
                         throw new RuntimeException("Failed to create session", e);
                     }
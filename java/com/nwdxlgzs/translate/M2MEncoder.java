@@ -20,11 +20,22 @@ import ai.onnxruntime.TensorInfo;
 
 public class M2MEncoder extends TensorBase {
     private volatile OrtSession session;
-    private final String modelPath;
+    private final ModelSource modelSource;
+    private final SessionConfig sessionConfig;
 
     public M2MEncoder(OrtEnvironment env, String encoder_onnx) {
+        this(env, encoder_onnx, SessionConfig.DEFAULT);
+    }
+
+    public M2MEncoder(OrtEnvironment env, String encoder_onnx, SessionConfig session_config) {
+        this(env, ModelSource.fromFile(encoder_onnx), session_config);
+    }
+
+    /** 比如ModelSource.fromAsset直接用APK里的模型，不用先拷到files目录 */
+    public M2MEncoder(OrtEnvironment env, ModelSource model_source, SessionConfig session_config) {
         super(env);
-        modelPath = encoder_onnx;
+        modelSource = model_source;
+        sessionConfig = session_config;
     }
 
     public HashMap<String, OnnxTensor> predict(OnnxTensor input_ids, OnnxTensor attention_mask) throws OrtException {
@@ -47,19 +58,21 @@ public class M2MEncoder extends TensorBase {
         return outputs;
     }
 
+    /** 现在就创建session，不等第一次predict；已经创建过时直接返回 */
+    public void load() {
+        getSession();
+    }
+
+    public boolean isLoaded() {
+        return session != null;
+    }
+
     private OrtSession getSession() {
         if (session == null) {
             synchronized (this) {
                 if (session == null) {
                     try {
-                        OrtSession.SessionOptions options = new OrtSession.SessionOptions();
-                        options.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.ALL_OPT);
-                        try {
-                            options.addNnapi();
-                        } catch (OrtException e) {
-                            options.addCPU(true);
-                        }
-                        session =  ortEnv.createSession(modelPath, options);
+                        session = createSession(modelSource, sessionConfig);
                     } catch (Exception e) {
                         throw new RuntimeException("Failed to create session", e);
                     }
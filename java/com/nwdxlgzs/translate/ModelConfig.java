@@ -0,0 +1,49 @@
+package com.nwdxlgzs.translate;
+
+/**
+ * config.json里模型结构相关的参数，加载时从M2MConfig解析一次，之后只读字段。
+ */
+public final class ModelConfig {
+    public final int dModel;
+    public final int encoderLayers;
+    public final int encoderAttentionHeads;
+    public final int decoderLayers;
+    public final int decoderAttentionHeads;
+    public final int vocabSize;
+    public final int maxPositionEmbeddings;
+
+    public ModelConfig(int dModel, int encoderLayers, int encoderAttentionHeads,
+                       int decoderLayers, int decoderAttentionHeads, int vocabSize, int maxPositionEmbeddings) {
+        if (encoderAttentionHeads < 1 || dModel % encoderAttentionHeads != 0)
+            throw new IllegalArgumentException("d_model " + dModel + " not divisible by encoder_attention_heads " + encoderAttentionHeads);
+        if (decoderAttentionHeads < 1 || dModel % decoderAttentionHeads != 0)
+            throw new IllegalArgumentException("d_model " + dModel + " not divisible by decoder_attention_heads " + decoderAttentionHeads);
+        this.dModel = dModel;
+        this.encoderLayers = encoderLayers;
+        this.encoderAttentionHeads = encoderAttentionHeads;
+        this.decoderLayers = decoderLayers;
+        this.decoderAttentionHeads = decoderAttentionHeads;
+        this.vocabSize = vocabSize;
+        this.maxPositionEmbeddings = maxPositionEmbeddings;
+    }
+
+    /** 缺的项按m2m100_418M的值 */
+    public static ModelConfig from(M2MConfig config) {
+        return new ModelConfig(
+                config.Config_getInt("d_model", 1024),
+                config.Config_getInt("encoder_layers", 12),
+                config.Config_getInt("encoder_attention_heads", 16),
+                config.Config_getInt("decoder_layers", 12),
+                config.Config_getInt("decoder_attention_heads", 16),
+                config.Config_getInt("vocab_size", 128112),
+                config.Config_getInt("max_position_embeddings", 1024));
+    }
+
+    public int getEncoderHeadDim() {
+        return dModel / encoderAttentionHeads;
+    }
+
+    public int getDecoderHeadDim() {
+        return dModel / decoderAttentionHeads;
+    }
+}
@@ -0,0 +1,167 @@
+package com.nwdxlgzs.translate;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+
+/**
+ * 模型从哪来：文件路径、内存映射的ByteBuffer、任意字节流或者APK里的asset。
+ * 除了文件以外都是把模型字节直接交给ORT建session，不用先解压/拷贝到磁盘上。
+ * 注意ORT解析ONNX时会把权重拷一份到自己的内存里，映射只是省掉了拷贝文件和重复占用磁盘。
+ */
+public abstract class ModelSource {
+    /** 这个来源建session，NNAPI失败回退时可能会被调用不止一次 */
+    abstract OrtSession createSession(OrtEnvironment env, OrtSession.SessionOptions options) throws OrtException;
+
+    /** 对应的模型文件，不是文件来源时返回null（比如优化缓存只支持文件来源） */
+    File getFile() {
+        return null;
+    }
+
+    public static ModelSource fromFile(File file) {
+        return new FileSource(file);
+    }
+
+    public static ModelSource fromFile(String path) {
+        return new FileSource(new File(path));
+    }
+
+    /** buffer从position到limit是完整的模型，不是direct的会先拷成direct */
+    public static ModelSource fromByteBuffer(ByteBuffer buffer) {
+        return new BufferSource(buffer, buffer.toString());
+    }
+
+    /** 只读映射整个文件再交给ORT */
+    public static ModelSource mapFile(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return new BufferSource(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()), file.getPath());
+        }
+    }
+
+    /** 每次建session时open一次流读进direct buffer，建完就丢掉 */
+    public static ModelSource fromStream(final ByteSource source, final String name) {
+        return new ModelSource() {
+            @Override
+            OrtSession createSession(OrtEnvironment env, OrtSession.SessionOptions options) throws OrtException {
+                ByteBuffer buffer;
+                try (InputStream in = source.open()) {
+                    buffer = readFully(in);
+                } catch (IOException e) {
+                    throw new OrtException("Failed to read model " + name + ": " + e.getMessage());
+                }
+                return env.createSession(buffer, options);
+            }
+
+            @Override
+            public String toString() {
+                return name;
+            }
+        };
+    }
+
+    /**
+     * APK里的asset：不压缩存放时（aapt的noCompress加上onnx）直接映射APK里那一段，
+     * 压缩了的asset没法映射，退回到按流读
+     */
+    public static ModelSource fromAsset(final AssetManager assets, final String name) throws IOException {
+        AssetFileDescriptor fd;
+        try {
+            fd = assets.openFd(name);
+        } catch (FileNotFoundException e) {
+            return fromStream(new ByteSource() {
+                @Override
+                public InputStream open() throws IOException {
+                    return assets.open(name);
+                }
+            }, name);
+        }
+        try (FileInputStream in = fd.createInputStream()) {
+            FileChannel channel = in.getChannel();
+            return new BufferSource(channel.map(FileChannel.MapMode.READ_ONLY, fd.getStartOffset(), fd.getLength()), name);
+        } finally {
+            fd.close();
+        }
+    }
+
+    public interface ByteSource {
+        InputStream open() throws IOException;
+    }
+
+    private static ByteBuffer readFully(InputStream in) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(in.available(), 1 << 20));
+        byte[] buf = new byte[128 * 1024];
+        int r;
+        while ((r = in.read(buf)) != -1) {
+            if (buffer.remaining() < r) {
+                ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2, buffer.position() + r));
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+            buffer.put(buf, 0, r);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static class FileSource extends ModelSource {
+        private final File file;
+
+        FileSource(File file) {
+            this.file = file;
+        }
+
+        @Override
+        OrtSession createSession(OrtEnvironment env, OrtSession.SessionOptions options) throws OrtException {
+            return env.createSession(file.getPath(), options);
+        }
+
+        @Override
+        File getFile() {
+            return file;
+        }
+
+        @Override
+        public String toString() {
+            return file.getPath();
+        }
+    }
+
+    private static class BufferSource extends ModelSource {
+        private final ByteBuffer buffer;
+        private final String name;
+
+        BufferSource(ByteBuffer buffer, String name) {
+            if (!buffer.isDirect()) {
+                ByteBuffer direct = ByteBuffer.allocateDirect(buffer.remaining());
+                direct.put(buffer.duplicate());
+                direct.flip();
+                buffer = direct;
+            }
+            this.buffer = buffer;
+            this.name = name;
+        }
+
+        @Override
+        OrtSession createSession(OrtEnvironment env, OrtSession.SessionOptions options) throws OrtException {
+            return env.createSession(buffer.duplicate(), options);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
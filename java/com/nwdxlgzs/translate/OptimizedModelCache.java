@@ -0,0 +1,145 @@
+package com.nwdxlgzs.translate;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import ai.onnxruntime.OrtSession;
+
+/**
+ * ORT图优化结果的磁盘缓存：第一次加载时让ORT把优化后的图存成ORT格式，之后直接加载它并关掉图优化。
+ * 文件名里带了原模型的CRC32和大小、ORT版本和优化等级，任何一个变了都对不上，会重新生成并删掉旧的。
+ * CRC32只在模型大小或修改时间变了时才重新算，平时启动只stat一下模型文件。
+ * ALL_OPT的结果和当前CPU有关，缓存目录不要在不同机型之间共享。
+ */
+final class OptimizedModelCache {
+    private static final String SUFFIX = ".ort";
+    private static final String TMP_SUFFIX = ".tmp";
+    //模型的CRC32记在缓存目录的这个文件里，大小和修改时间没变就不再读整个模型
+    private static final String CHECKSUM_SUFFIX = "crc";
+    //按路径加锁：同一个模型的多组session同时加载时，checksum只算一次，优化缓存也只由第一个生成，其余的等它写完直接加载
+    private static final ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<>();
+    //模型路径|大小|修改时间 -> CRC32
+    private static final ConcurrentHashMap<String, Long> checksums = new ConcurrentHashMap<>();
+
+    private OptimizedModelCache() {
+    }
+
+    /** model对应的缓存文件，dir为null时放在模型旁边 */
+    static File cacheFile(File model, File dir, String ort_version, OrtSession.SessionOptions.OptLevel opt_level) throws IOException {
+        if (dir == null) dir = model.getAbsoluteFile().getParentFile();
+        String key = String.format("%08x-%x", checksum(model, dir), model.length());
+        String name = prefix(model) + key + "." + ort_version.replaceAll("[^0-9A-Za-z.]", "_") + "." + opt_level.name() + SUFFIX;
+        return new File(dir, name);
+    }
+
+    /** 生成或读取file时要持有的锁，只管同一个进程；跨进程靠每个写者各用一个临时文件再改名 */
+    static Object lockFor(File file) {
+        return lockFor(file.getAbsolutePath());
+    }
+
+    private static Object lockFor(String key) {
+        Object lock = locks.get(key);
+        if (lock != null) return lock;
+        Object created = new Object();
+        lock = locks.putIfAbsent(key, created);
+        return lock != null ? lock : created;
+    }
+
+    /** 给cached写的临时文件，名字唯一，和缓存文件在同一个目录下，写完改名过去 */
+    static File createTempFile(File cached) throws IOException {
+        return File.createTempFile(cached.getName() + ".", TMP_SUFFIX, cached.getParentFile());
+    }
+
+    /** 同一个模型其他key的缓存文件都是过期的；当前key的临时文件可能是别的进程正在写，不动 */
+    static void deleteStale(File model, File current) {
+        File[] files = current.getParentFile().listFiles();
+        if (files == null) return;
+        String prefix = prefix(model);
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(prefix) || file.equals(current)) continue;
+            //缓存的临时文件是"<缓存文件名>.<随机>.tmp"，checksum的临时文件不带.ort.，不归这里删
+            boolean tmp = name.endsWith(TMP_SUFFIX) && name.contains(SUFFIX + ".");
+            if (name.endsWith(SUFFIX) || (tmp && !name.startsWith(current.getName()))) {
+                file.delete();
+            }
+        }
+    }
+
+    private static String prefix(File model) {
+        return model.getName() + ".opt.";
+    }
+
+    /** 先查内存，再查dir里记下的，大小或修改时间变了才重新读整个模型 */
+    private static long checksum(File model, File dir) throws IOException {
+        long length = model.length();
+        long modified = model.lastModified();
+        String memo_key = model.getAbsolutePath() + "|" + length + "|" + modified;
+        Long memo = checksums.get(memo_key);
+        if (memo != null) return memo;
+        synchronized (lockFor(memo_key)) {
+            memo = checksums.get(memo_key);
+            if (memo != null) return memo;
+            File sidecar = new File(dir, prefix(model) + CHECKSUM_SUFFIX);
+            long crc;
+            Long stored = readChecksum(sidecar, length, modified);
+            if (stored != null) {
+                crc = stored;
+            } else {
+                crc = computeChecksum(model);
+                writeChecksum(sidecar, length, modified, crc);
+            }
+            checksums.put(memo_key, crc);
+            return crc;
+        }
+    }
+
+    /** 格式是一行"大小 修改时间 crc"，对不上或者读不了都返回null */
+    private static Long readChecksum(File sidecar, long length, long modified) {
+        if (!sidecar.isFile()) return null;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(sidecar), "UTF-8"))) {
+            String line = reader.readLine();
+            if (line == null) return null;
+            String[] parts = line.trim().split(" ");
+            if (parts.length != 3 || Long.parseLong(parts[0]) != length || Long.parseLong(parts[1]) != modified) return null;
+            return Long.parseLong(parts[2], 16);
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** 写不了（比如目录只读）就算了，下次启动再算一遍 */
+    private static void writeChecksum(File sidecar, long length, long modified, long crc) {
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(sidecar.getName() + ".", TMP_SUFFIX, sidecar.getParentFile());
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                out.write((length + " " + modified + " " + Long.toHexString(crc) + "\n").getBytes("UTF-8"));
+            }
+            if (tmp.renameTo(sidecar) || (sidecar.delete() && tmp.renameTo(sidecar))) tmp = null;
+        } catch (IOException ignored) {
+        } finally {
+            if (tmp != null) tmp.delete();
+        }
+    }
+
+    private static long computeChecksum(File model) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buf = new byte[1 << 20];
+        try (InputStream in = new FileInputStream(model)) {
+            int r;
+            while ((r = in.read(buf)) != -1) {
+                crc.update(buf, 0, r);
+            }
+        }
+        return crc.getValue();
+    }
+}
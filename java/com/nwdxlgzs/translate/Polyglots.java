@@ -7,6 +7,7 @@ import org.json.JSONException;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -14,26 +15,307 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import ai.onnxruntime.OnnxJavaType;
 import ai.onnxruntime.OnnxTensor;
 import ai.onnxruntime.OrtEnvironment;
 import ai.onnxruntime.OrtException;
 
+/**
+ * 线程安全：translate系列方法可以在多个线程里同时调用。每次翻译的解码状态都在自己的DecodeBatch里，
+ * 共享的只有tokenizer（编码/解码不碰srcLang）、EncoderCache/TranslationCache（内部加锁）和ORT session（run本身可并发）。
+ * 只有一组session时并发的翻译挤在同一组session上，用sessions参数开多组，每次翻译挑最空闲的一组。
+ * setPreallocateKVCache/setTranslationCache随时可以改，只影响之后开始的翻译
+ */
 public class Polyglots {
     public final M2M100TokenizerFast tokenizer;
+    //第0组session，只有一组时就是全部
     public final M2MEncoder encoder;
     public final M2MDecoder decoder;
+    private final M2MEncoder[] encoders;
+    private final M2MDecoder[] decoders;
+    private final AtomicIntegerArray sessionLoad;
+    //每组session空闲着的预分配KV cache，一组只留一份
+    private final AtomicReferenceArray<DecoderKVCache> idleKVCaches;
+    private final AtomicInteger nextSession = new AtomicInteger();
     public final M2MConfig config;
+    //从config解析好的参数，解码时只读这两个
+    public final ModelConfig modelConfig;
+    public final GenerationConfig generationConfig;
+    //单句翻译的encoder结果缓存，setMaxBytes(0)可关闭
+    public final EncoderCache encoderCache = new EncoderCache(32L * 1024 * 1024);
+    private volatile boolean preallocateKVCache = false;
+    //结果缓存默认关闭，用setTranslationCache打开
+    private volatile TranslationCache translationCache = null;
 
+    /** encoder/decoder的session在第一次翻译时才创建，想提前加载用load */
     public Polyglots(OrtEnvironment ortEnv, String modelDir) throws JSONException, IOException {
-        tokenizer = M2M100TokenizerFast.fromPretrained(modelDir);
-        encoder = new M2MEncoder(ortEnv, new File(modelDir, "encoder_model.onnx").getAbsolutePath());
-        decoder = new M2MDecoder(ortEnv, new File(modelDir, "decoder_model_merged.onnx").getAbsolutePath());
-        config = new M2MConfig(new File(modelDir, "config.json").getAbsolutePath(), new File(modelDir, "generation_config.json").getAbsolutePath());
+        this(ortEnv, modelDir, SessionConfig.DEFAULT, SessionConfig.DEFAULT);
     }
 
-    private void addPastKeyValues(HashMap<String, OnnxTensor> decoderFeedPast, HashMap<String, OnnxTensor> pastKeyValues, long batch_size) throws OrtException {
+    /** encoder和decoder的session参数分开给，比如各自限定intra-op线程数 */
+    public Polyglots(OrtEnvironment ortEnv, String modelDir, SessionConfig encoderSessionConfig,
+                     SessionConfig decoderSessionConfig) throws JSONException, IOException {
+        this(ortEnv, modelDir, encoderSource(modelDir), decoderSource(modelDir), encoderSessionConfig, decoderSessionConfig);
+    }
+
+    /**
+     * 模型不从modelDir读，比如ModelSource.fromAsset直接映射APK里的onnx；
+     * tokenizer.json和config.json/generation_config.json还是从modelDir读，它们很小，拷出来也不费事
+     */
+    public Polyglots(OrtEnvironment ortEnv, String modelDir, ModelSource encoderSource, ModelSource decoderSource,
+                     SessionConfig encoderSessionConfig, SessionConfig decoderSessionConfig) throws JSONException, IOException {
+        this(ortEnv, modelDir, encoderSource, decoderSource, 1, encoderSessionConfig, decoderSessionConfig);
+    }
+
+    /**
+     * sessions组encoder/decoder session，每次翻译挑当前在跑的翻译最少的那组，多核机器上几句话可以真正并行。
+     * session config没指定intra-op线程数时，每组分到 CPU核数/sessions 个线程，互相不抢核。
+     * 每组session各自持有一份权重，内存占用是单组的sessions倍
+     */
+    public Polyglots(OrtEnvironment ortEnv, String modelDir, int sessions) throws JSONException, IOException {
+        this(ortEnv, modelDir, encoderSource(modelDir), decoderSource(modelDir), sessions, SessionConfig.DEFAULT,
+                SessionConfig.DEFAULT);
+    }
+
+    public Polyglots(OrtEnvironment ortEnv, String modelDir, ModelSource encoderSource, ModelSource decoderSource, int sessions,
+                     SessionConfig encoderSessionConfig, SessionConfig decoderSessionConfig) throws JSONException, IOException {
+        this(M2M100TokenizerFast.fromPretrained(modelDir),
+                createEncoders(ortEnv, encoderSource, sessions, encoderSessionConfig),
+                createDecoders(ortEnv, decoderSource, sessions, decoderSessionConfig),
+                loadConfig(modelDir));
+    }
+
+    private Polyglots(M2M100TokenizerFast tokenizer, M2MEncoder[] encoders, M2MDecoder[] decoders, M2MConfig config) {
+        this.tokenizer = tokenizer;
+        this.encoders = encoders;
+        this.decoders = decoders;
+        this.encoder = encoders[0];
+        this.decoder = decoders[0];
+        this.sessionLoad = new AtomicIntegerArray(encoders.length);
+        this.idleKVCaches = new AtomicReferenceArray<>(encoders.length);
+        this.config = config;
+        modelConfig = ModelConfig.from(config);
+        generationConfig = GenerationConfig.from(config, tokenizer);
+    }
+
+    private static ModelSource encoderSource(String modelDir) {
+        return ModelSource.fromFile(new File(modelDir, "encoder_model.onnx"));
+    }
+
+    private static ModelSource decoderSource(String modelDir) {
+        return ModelSource.fromFile(new File(modelDir, "decoder_model_merged.onnx"));
+    }
+
+    private static M2MConfig loadConfig(String modelDir) {
+        return new M2MConfig(new File(modelDir, "config.json").getAbsolutePath(), new File(modelDir, "generation_config.json").getAbsolutePath());
+    }
+
+    /** 多组session时没指定intra-op线程数就平分CPU核 */
+    private static SessionConfig threadBudget(SessionConfig config, int sessions) {
+        if (sessions == 1 || config.intraOpThreads > 0) return config;
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / sessions);
+        return config.toBuilder().setIntraOpThreads(threads).build();
+    }
+
+    private static M2MEncoder[] createEncoders(OrtEnvironment ortEnv, ModelSource source, int sessions, SessionConfig config) {
+        if (sessions < 1) throw new IllegalArgumentException("sessions < 1");
+        M2MEncoder[] encoders = new M2MEncoder[sessions];
+        for (int i = 0; i < sessions; i++) {
+            encoders[i] = new M2MEncoder(ortEnv, source, threadBudget(config, sessions));
+        }
+        return encoders;
+    }
+
+    private static M2MDecoder[] createDecoders(OrtEnvironment ortEnv, ModelSource source, int sessions, SessionConfig config) {
+        if (sessions < 1) throw new IllegalArgumentException("sessions < 1");
+        M2MDecoder[] decoders = new M2MDecoder[sessions];
+        for (int i = 0; i < sessions; i++) {
+            decoders[i] = new M2MDecoder(ortEnv, source, threadBudget(config, sessions));
+        }
+        return decoders;
+    }
+
+    /** 用一个临时线程池加载，加载完就关掉 */
+    public static CompletableFuture<Polyglots> load(OrtEnvironment ortEnv, String modelDir) {
+        return load(ortEnv, modelDir, SessionConfig.DEFAULT, SessionConfig.DEFAULT);
+    }
+
+    public static CompletableFuture<Polyglots> load(OrtEnvironment ortEnv, String modelDir, SessionConfig encoderSessionConfig,
+                                                    SessionConfig decoderSessionConfig) {
+        return load(ortEnv, modelDir, 1, encoderSessionConfig, decoderSessionConfig);
+    }
+
+    public static CompletableFuture<Polyglots> load(OrtEnvironment ortEnv, String modelDir, int sessions,
+                                                    SessionConfig encoderSessionConfig, SessionConfig decoderSessionConfig) {
+        final ExecutorService executor = Executors.newFixedThreadPool(1 + 2 * Math.max(1, sessions));
+        CompletableFuture<Polyglots> future = load(ortEnv, modelDir, encoderSource(modelDir), decoderSource(modelDir), sessions,
+                encoderSessionConfig, decoderSessionConfig, executor);
+        future.whenComplete((polyglots, error) -> executor.shutdown());
+        return future;
+    }
+
+    public static CompletableFuture<Polyglots> load(OrtEnvironment ortEnv, String modelDir, SessionConfig encoderSessionConfig,
+                                                    SessionConfig decoderSessionConfig, Executor executor) {
+        return load(ortEnv, modelDir, encoderSource(modelDir), decoderSource(modelDir), 1, encoderSessionConfig,
+                decoderSessionConfig, executor);
+    }
+
+    public static CompletableFuture<Polyglots> load(OrtEnvironment ortEnv, String modelDir, ModelSource encoderSource,
+                                                    ModelSource decoderSource, SessionConfig encoderSessionConfig,
+                                                    SessionConfig decoderSessionConfig, Executor executor) {
+        return load(ortEnv, modelDir, encoderSource, decoderSource, 1, encoderSessionConfig, decoderSessionConfig, executor);
+    }
+
+    /**
+     * 启动路径：tokenizer和每个encoder/decoder session都在executor上并行加载，
+     * 都好了之后每组session再跑一次很短的预热翻译，让ORT把第一次run时的内存分配和kernel初始化做掉。
+     * future完成时实例已经可以直接服务；任何一步失败future就异常结束
+     */
+    public static CompletableFuture<Polyglots> load(OrtEnvironment ortEnv, final String modelDir, ModelSource encoderSource,
+                                                    ModelSource decoderSource, int sessions, SessionConfig encoderSessionConfig,
+                                                    SessionConfig decoderSessionConfig, Executor executor) {
+        final M2MEncoder[] encoders;
+        final M2MDecoder[] decoders;
+        try {
+            encoders = createEncoders(ortEnv, encoderSource, sessions, encoderSessionConfig);
+            decoders = createDecoders(ortEnv, decoderSource, sessions, decoderSessionConfig);
+        } catch (RuntimeException e) {
+            CompletableFuture<Polyglots> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        final CompletableFuture<M2M100TokenizerFast> tokenizer = CompletableFuture.supplyAsync(() -> {
+            try {
+                return M2M100TokenizerFast.fromPretrained(modelDir);
+            } catch (IOException | JSONException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+        List<CompletableFuture<?>> loading = new ArrayList<>();
+        loading.add(tokenizer);
+        for (int i = 0; i < sessions; i++) {
+            loading.add(CompletableFuture.runAsync(encoders[i]::load, executor));
+            loading.add(CompletableFuture.runAsync(decoders[i]::load, executor));
+        }
+        return CompletableFuture.allOf(loading.toArray(new CompletableFuture<?>[0])).thenApplyAsync(ignored -> {
+            Polyglots polyglots = new Polyglots(tokenizer.join(), encoders, decoders, loadConfig(modelDir));
+            try {
+                polyglots.warmUp();
+            } catch (OrtException e) {
+                throw new CompletionException(e);
+            }
+            return polyglots;
+        }, executor);
+    }
+
+    public int getSessionCount() {
+        return encoders.length;
+    }
+
+    /** 第i组session上正在跑的翻译数 */
+    public int getSessionLoad(int i) {
+        return sessionLoad.get(i);
+    }
+
+    /**
+     * 挑正在跑的翻译最少的一组session并占上，一样少时轮流挑，空闲时连续几次会依次落到每一组上。
+     * 读负载和占位之间不加锁，并发时偶尔挑得不是最优，不影响正确性
+     */
+    int acquireSession() {
+        int n = encoders.length;
+        if (n == 1) {
+            sessionLoad.incrementAndGet(0);
+            return 0;
+        }
+        int start = Math.floorMod(nextSession.getAndIncrement(), n);
+        int best = start;
+        for (int k = 1; k < n; k++) {
+            int i = (start + k) % n;
+            if (sessionLoad.get(i) < sessionLoad.get(best)) best = i;
+        }
+        sessionLoad.incrementAndGet(best);
+        return best;
+    }
+
+    void releaseSession(int i) {
+        sessionLoad.decrementAndGet(i);
+    }
+
+    /** 取第i组session留着的KV cache，没有（比如同一组上有别的batch在用）就新建一个空的 */
+    DecoderKVCache takeKVCache(int i) {
+        DecoderKVCache cache = idleKVCaches.getAndSet(i, null);
+        return cache != null ? cache : new DecoderKVCache();
+    }
+
+    /** batch用完还回来；这组已经留了一份、或者预分配已经关了就直接丢掉，由GC回收 */
+    void returnKVCache(int i, DecoderKVCache cache) {
+        if (preallocateKVCache) idleKVCaches.compareAndSet(i, null, cache);
+    }
+
+    M2MEncoder getEncoder(int i) {
+        return encoders[i];
+    }
+
+    M2MDecoder getDecoder(int i) {
+        return decoders[i];
+    }
+
+    /**
+     * 不经过结果缓存和encoder缓存跑一句短翻译，按generationConfig的num_beams走beam search或者贪婪解码那条路径，
+     * 预分配KV cache打开时也会把它建一次
+     */
+    public void warmUp() throws OrtException {
+        Map<String, Long> lang_code_to_id = tokenizer.getLangCodeToId();
+        if (lang_code_to_id.isEmpty()) return;
+        String code = lang_code_to_id.containsKey("__en__") ? "__en__" : lang_code_to_id.keySet().iterator().next();
+        Map<String, Object> encoded = tokenizer.callWithSrcLangOnce("Hello world.", code.substring(2, code.length() - 2));
+        //空闲时acquireSession轮流挑，跑sessions次正好每组一次
+        for (int i = 0; i < getSessionCount(); i++) {
+            generate((long[][]) encoded.get("input_ids"), (long[][]) encoded.get("attention_mask"), new long[]{lang_code_to_id.get(code)},
+                    Math.min(4, generationConfig.maxLength), generationConfig.numBeams, generationConfig.topK);
+        }
+    }
+
+    /**
+     * 打开后decoder的KV cache和logits绑定到按max_length预分配的缓冲区上，每步不再让ORT新分配present.*，
+     * 代价是一开始就按max_length占满内存，而且每组session常驻一份（按用过的最大行数和长度），
+     * 适合长度差不多、对内存峰值有要求的场景；关掉时释放常驻的那份
+     */
+    public void setPreallocateKVCache(boolean preallocate) {
+        this.preallocateKVCache = preallocate;
+        if (!preallocate) {
+            for (int i = 0; i < idleKVCaches.length(); i++) {
+                idleKVCaches.set(i, null);
+            }
+        }
+    }
+
+    public boolean isPreallocateKVCache() {
+        return preallocateKVCache;
+    }
+
+    /**
+     * 打开结果缓存（比如new TranslationCache(1024)，或者带磁盘层的），传null关闭；默认不缓存。
+     * 命中时直接返回之前的译文字符串，不再解码；旧的缓存由调用方close
+     */
+    public void setTranslationCache(TranslationCache cache) {
+        this.translationCache = cache;
+    }
+
+    public TranslationCache getTranslationCache() {
+        return translationCache;
+    }
+
+    void addPastKeyValues(HashMap<String, OnnxTensor> decoderFeedPast, HashMap<String, OnnxTensor> pastKeyValues, long batch_size) throws OrtException {
         if (pastKeyValues != null && !pastKeyValues.isEmpty()) {
             for (Map.Entry<String, OnnxTensor> entry : pastKeyValues.entrySet()) {
                 String key = entry.getKey();
@@ -45,11 +327,11 @@ public class Polyglots {
             }
         } else {
             // 初始化past key values
-            int num_decoder_layers = (int) config.Config_get("decoder_layers", 12);
-            int num_decoder_heads = (int) config.Config_get("decoder_attention_heads", 16);
-            int decoder_dim_kv = (int) config.Config_get("d_model", 1024) / num_decoder_heads;
-            int num_encoder_heads = (int) config.Config_get("encoder_attention_heads", 16);
-            int encoder_dim_kv = (int) config.Config_get("d_model", 1024) / num_encoder_heads;
+            int num_decoder_layers = modelConfig.decoderLayers;
+            int num_decoder_heads = modelConfig.decoderAttentionHeads;
+            int decoder_dim_kv = modelConfig.getDecoderHeadDim();
+            int num_encoder_heads = modelConfig.encoderAttentionHeads;
+            int encoder_dim_kv = modelConfig.getEncoderHeadDim();
 
             long[] encoder_dims = new long[]{batch_size, num_encoder_heads, 0, encoder_dim_kv};
             long[] decoder_dims = new long[]{batch_size, num_decoder_heads, 0, decoder_dim_kv};
@@ -67,7 +349,7 @@ public class Polyglots {
         }
     }
 
-    private static void closeMapTensors(HashMap<String, OnnxTensor> map) {
+    static void closeMapTensors(HashMap<String, OnnxTensor> map) {
         if (map == null || map.isEmpty()) return;
         for (OnnxTensor tensor : map.values()) {
             if (tensor != null && !tensor.isClosed()) {
@@ -81,245 +363,215 @@ public class Polyglots {
     }
 
     public String translate(String src_text, String src_lang, String tgt_lang, int max_length) throws OrtException {
-        int num_beams = (int) config.Config_get("num_beams", 5);
-        int top_k = (int) config.Config_get("top_k", 50);
-        return translate(src_text, src_lang, tgt_lang, max_length, num_beams, top_k);
+        return translate(src_text, src_lang, tgt_lang, max_length, generationConfig.numBeams, generationConfig.topK);
+    }
+
+    /** 用单次请求的参数覆盖generationConfig，比如generationConfig.withNumBeams(1) */
+    public String translate(String src_text, String src_lang, String tgt_lang, GenerationConfig generation_config) throws OrtException {
+        return translate(src_text, src_lang, tgt_lang, generation_config.maxLength, generation_config.numBeams, generation_config.topK);
     }
 
     public String translate(String src_text, String src_lang, String tgt_lang, int max_length, int num_beams, int top_k) throws OrtException {
         if (max_length > 200)
             throw new IllegalArgumentException("M2M100-Model: max_length > 200 not support");
         if (Objects.equals(src_text, tgt_lang)) return src_text == null ? "" : src_text;
-        Map<String, Object> encoded = tokenizer.callWithSrcLangOnce(src_text, src_lang);
-        long[][] input_ids = (long[][]) encoded.get("input_ids");
-        long[][] attention_mask = (long[][]) encoded.get("attention_mask");
-        OnnxTensor input_ids_Tensor = null;
-        OnnxTensor attention_mask_Tensor = null;
-        OnnxTensor last_hidden_state_Tensor = null;
-        OnnxTensor expanded_encoder_output = null;
-        OnnxTensor expanded_attention_mask = null;
-        List<Beam> beams = new ArrayList<>();
-        List<OnnxTensor> last_decoderKV_1 = new ArrayList<>();
-        List<OnnxTensor> last_decoderKV_2 = new ArrayList<>();
-        //TMD我真是服了，没人告诉我Encoder的得一直用一开始的啊
-        HashMap<String, OnnxTensor> encoder_past_key_values = null;
+        TranslationCache cache = translationCache;
+        String cached = cache == null ? null : cache.get(src_text, src_lang, tgt_lang, max_length, num_beams, top_k);
+        if (cached != null) return cached;
         long tgt_lang_id = tokenizer.getLangId(tgt_lang);
-        ArrayList<Long> initial_input = new ArrayList<>();
-        initial_input.add(tokenizer.eosTokenId);
-        try {
-            input_ids_Tensor = encoder.createLikeArray(input_ids, OnnxJavaType.INT64);
-            attention_mask_Tensor = encoder.createLikeArray(attention_mask, OnnxJavaType.INT64);
-            Map<String, OnnxTensor> encoder_outputs = encoder.predict(input_ids_Tensor, attention_mask_Tensor);
-            last_hidden_state_Tensor = encoder_outputs.get("last_hidden_state");
-            beams.add(new Beam(initial_input, 0.0f));
-            //输入要扩到num_beams
-            long[] encoder_shape = last_hidden_state_Tensor.getInfo().getShape();
-            long[] expanded_encoder_shape = new long[]{encoder_shape[0] * num_beams, encoder_shape[1], encoder_shape[2]};
-            expanded_encoder_output = encoder.expand(last_hidden_state_Tensor, expanded_encoder_shape);
-            long[] attention_mask_shape = attention_mask_Tensor.getInfo().getShape();
-            long[] expanded_attention_mask_shape = new long[]{attention_mask_shape[0] * num_beams, attention_mask_shape[1]};
-            expanded_attention_mask = encoder.expand(attention_mask_Tensor, expanded_attention_mask_shape);
-            for (int step = 0; step < max_length; step++) {
-                List<Beam> next_beams = new ArrayList<>();
-                for (Beam beam : beams) {
-                    if (beam.isFinished()) {
-                        next_beams.add(beam);
-                        continue;
-                    }
-                    OnnxTensor decoder_input = null;
-                    try {
-                        decoder_input = decoder.tokens2Tensor(beam.getSequence());
-                        long[] decoder_input_shape = decoder_input.getInfo().getShape();
-                        long[] expanded_decoder_input_shape = new long[]{decoder_input_shape[0] * num_beams, decoder_input_shape[1]};
-                        OnnxTensor expanded_decoder_input = encoder.expand(decoder_input, expanded_decoder_input_shape);
-                        decoder_input.close();
-                        decoder_input = expanded_decoder_input;
-                        HashMap<String, OnnxTensor> past_key_values = new HashMap<>();
-                        if (step == 0) {
-                            // 第一次调用，初始化encoder的key和value
-                            addPastKeyValues(past_key_values, null, decoder_input.getInfo().getShape()[0]);
-                        } else {
-                            // 后续步骤，使用之前保存的encoder key和value
-                            if (encoder_past_key_values != null) {
-                                for (Map.Entry<String, OnnxTensor> entry : encoder_past_key_values.entrySet()) {
-                                    if (entry.getKey().contains(".encoder.")) {
-                                        past_key_values.put(entry.getKey(), entry.getValue());
-                                    }
-                                }
-                            }
-                            // 添加decoder的past key values
-                            addPastKeyValues(past_key_values, beam.getPastKeyValues(), decoder_input.getInfo().getShape()[0]);
-                        }
-                        HashMap<String, OnnxTensor> decoder_outputs = decoder.predict(
-                                decoder_input, expanded_attention_mask, expanded_encoder_output,
-                                step > 0, past_key_values
-                        );
-                        OnnxTensor logits_tensor = decoder_outputs.get("logits");
-                        float[][][] logits = (float[][][]) logits_tensor.getValue();
-                        float[] next_token_logits = logits[0][logits[0].length - 1];
-                        if (step == 0) {
-                            encoder_past_key_values = new HashMap<>();
-                            for (Map.Entry<String, OnnxTensor> entry : decoder_outputs.entrySet()) {
-                                String key = entry.getKey();
-                                if (key.startsWith("present.") && key.contains(".encoder.")) {
-                                    String past_key = key.replace("present.", "past_key_values.");
-                                    encoder_past_key_values.put(past_key, entry.getValue());
-                                }
-                            }
-                            // 强制选择目标语言token
-                            for (int i = 0; i < next_token_logits.length; i++) {
-                                if (i == tgt_lang_id) {
-                                    next_token_logits[i] = 0.0f;
-                                } else {
-                                    next_token_logits[i] = Float.NEGATIVE_INFINITY;
-                                }
-                            }
-                        } else {
-                            //后续的Encoder不需要
-                            for (Map.Entry<String, OnnxTensor> entry : decoder_outputs.entrySet()) {
-                                String key = entry.getKey();
-                                if (key.startsWith("present.") && key.contains(".encoder.")) {
-                                    entry.getValue().close();
-                                }
-                            }
-                        }
-
-                        float[] probs = TensorBase.softmax(next_token_logits);
-                        int[] topk_indices = TensorBase.topK(probs, top_k);
-                        HashMap<String, OnnxTensor> new_past = new HashMap<>();
-                        for (Map.Entry<String, OnnxTensor> entry : decoder_outputs.entrySet()) {
-                            String key = entry.getKey();
-                            if (key.startsWith("present.")) {
-                                String past_key = key.replace("present.", "past_key_values.");
-                                // 跳过encoder部分，因为我们已经单独保存了
-                                if (!past_key.contains(".encoder.")) {
-                                    new_past.put(past_key, entry.getValue());
-                                    if (step % 2 == 0)//两个decoder交替负责清理，保证没有内存泄漏
-                                        last_decoderKV_1.add(entry.getValue());
-                                    else
-                                        last_decoderKV_2.add(entry.getValue());
-                                }
-                            } else if (!key.equals("logits")) {
-                                entry.getValue().close();
-                            }
-                        }
-                        logits_tensor.close();
-                        for (int idx : topk_indices) {
-                            ArrayList<Long> new_sequence = new ArrayList<>(beam.getSequence());
-                            new_sequence.add((long) idx);
-                            float new_score = beam.getScore() + (float) Math.log(probs[idx]);
-                            HashMap<String, OnnxTensor> beam_past = new HashMap<>(new_past);
-                            next_beams.add(new Beam(new_sequence, new_score, beam_past));
-                        }
-                    } finally {
-                        if (decoder_input != null && !decoder_input.isClosed()) {
-                            decoder_input.close();
-                        }
-                    }
-                }
-                for (Beam beam : beams) {
-                    if (!next_beams.contains(beam)) {
-                        beam.close();
-                    }
-                }
-                if (step % 2 == 0) {
-                    for (OnnxTensor tensor : last_decoderKV_2) {
-                        if (!tensor.isClosed())
-                            tensor.close();
-                    }
-                    last_decoderKV_2.clear();
-                } else {
-                    for (OnnxTensor tensor : last_decoderKV_1) {
-                        if (!tensor.isClosed())
-                            tensor.close();
-                    }
-                    last_decoderKV_1.clear();
-                }
-                beams = selectTopBeams(next_beams, num_beams);
-                boolean all_finished = true;
-                for (Beam beam : beams) {
-                    if (!beam.isFinished()) {
-                        all_finished = false;
-                        break;
-                    }
-                }
-                if (all_finished) break;
-            }
-            Beam best_beam = beams.get(0);
-            for (Beam beam : beams) {
-                if (beam.getScore() > best_beam.getScore()) {
-                    best_beam = beam;
-                }
-            }
-            return tokenizer.decode(best_beam.getSequence(), false);
-        } finally {
-            if (input_ids_Tensor != null) input_ids_Tensor.close();
-            if (attention_mask_Tensor != null) attention_mask_Tensor.close();
-            if (last_hidden_state_Tensor != null) last_hidden_state_Tensor.close();
-            if (expanded_encoder_output != null) expanded_encoder_output.close();
-            if (expanded_attention_mask != null) expanded_attention_mask.close();
-            for (Beam beam : beams) {
-                beam.close();
-            }
-            if (encoder_past_key_values != null) {
-                closeMapTensors(encoder_past_key_values);
+        String result;
+        try (DecodeBatch batch = openBatch(src_text, src_lang, new long[]{tgt_lang_id}, max_length, num_beams, top_k)) {
+            while (batch.step()) ;
+            batch.cacheEncoderState(encoderCache, src_text, src_lang);
+            result = tokenizer.decode(batch.getBestSequence(0), false);
+            if (cache != null) {
+                cache.put(src_text, src_lang, tgt_lang, max_length, num_beams, top_k, result);
+                cache.put(src_text, src_lang, tgt_lang, max_length, num_beams, top_k, true,
+                        tokenizer.decode(batch.getBestSequence(0), true));
             }
         }
+        return result;
     }
 
-    class Beam {
-        private final ArrayList<Long> sequence;
-        private final float score;
-        private HashMap<String, OnnxTensor> pastKeyValues;
-        private final boolean finished;
+    public String translateStream(String src_text, String src_lang, String tgt_lang, int max_length, TranslateListener listener) throws OrtException {
+        return translateStream(src_text, src_lang, tgt_lang, max_length, generationConfig.numBeams, generationConfig.topK, listener);
+    }
 
-        public void close() {
-            if (pastKeyValues != null) {
-                closeMapTensors(pastKeyValues);
-                pastKeyValues = null;
+    public String translateStream(String src_text, String src_lang, String tgt_lang, GenerationConfig generation_config, TranslateListener listener) throws OrtException {
+        return translateStream(src_text, src_lang, tgt_lang, generation_config.maxLength, generation_config.numBeams,
+                generation_config.topK, listener);
+    }
+
+    /**
+     * 边解码边回调：贪婪解码每出一个token就推一次，beam search推所有beam都认同的公共前缀。
+     * 推的片段不含特殊token，缓存命中时也一样；返回值和translate一致
+     */
+    public String translateStream(String src_text, String src_lang, String tgt_lang, int max_length, int num_beams, int top_k, TranslateListener listener) throws OrtException {
+        if (max_length > 200)
+            throw new IllegalArgumentException("M2M100-Model: max_length > 200 not support");
+        if (Objects.equals(src_text, tgt_lang)) {
+            String result = src_text == null ? "" : src_text;
+            listener.onPartial(result);
+            return result;
+        }
+        TranslationCache cache = translationCache;
+        //推给listener的是跳过特殊token的译文，和没命中时StreamDecoder推的一样，两种都命中才算命中
+        String cached = cache == null ? null : cache.get(src_text, src_lang, tgt_lang, max_length, num_beams, top_k);
+        String cached_text = cached == null ? null : cache.get(src_text, src_lang, tgt_lang, max_length, num_beams, top_k, true);
+        if (cached_text != null) {
+            //命中时整句一次推出去
+            if (!cached_text.isEmpty()) listener.onPartial(cached_text);
+            return cached;
+        }
+        long tgt_lang_id = tokenizer.getLangId(tgt_lang);
+        M2M100TokenizerFast.StreamDecoder stream = tokenizer.newStreamDecoder();
+        String result;
+        try (DecodeBatch batch = openBatch(src_text, src_lang, new long[]{tgt_lang_id}, max_length, num_beams, top_k)) {
+            boolean running;
+            do {
+                running = batch.step();
+                String delta = stream.next(batch.getStablePrefix(0));
+                if (!delta.isEmpty()) listener.onPartial(delta);
+            } while (running);
+            batch.cacheEncoderState(encoderCache, src_text, src_lang);
+            result = tokenizer.decode(batch.getBestSequence(0), false);
+            if (cache != null) {
+                cache.put(src_text, src_lang, tgt_lang, max_length, num_beams, top_k, result);
+                cache.put(src_text, src_lang, tgt_lang, max_length, num_beams, top_k, true,
+                        tokenizer.decode(batch.getBestSequence(0), true));
             }
         }
+        return result;
+    }
 
-        public Beam(ArrayList<Long> sequence, float score) {
-            this.sequence = sequence;
-            this.score = score;
-            this.pastKeyValues = null;
-            this.finished = false;
-        }
+    public List<String> translateToMany(String src_text, String src_lang, List<String> tgt_langs) throws OrtException {
+        return translateToMany(src_text, src_lang, tgt_langs, generationConfig);
+    }
 
-        public Beam(ArrayList<Long> sequence, float score, HashMap<String, OnnxTensor> pastKeyValues) {
-            this.sequence = sequence;
-            this.score = score;
-            this.pastKeyValues = pastKeyValues;
-            this.finished = sequence.get(sequence.size() - 1) == tokenizer.eosTokenId;
-        }
+    public List<String> translateToMany(String src_text, String src_lang, List<String> tgt_langs, GenerationConfig generation_config) throws OrtException {
+        return translateToMany(src_text, src_lang, tgt_langs, generation_config.maxLength, generation_config.numBeams,
+                generation_config.topK);
+    }
 
-        public boolean isFinished() {
-            return finished;
+    /**
+     * 一句翻成多种语言：encoder只跑一次，每种目标语言是一组beam，第0步各自强制选自己的语言token，
+     * 所有目标拼在同一个decoder batch里解码。结果和tgt_langs一一对应
+     */
+    public List<String> translateToMany(String src_text, String src_lang, List<String> tgt_langs,
+                                        int max_length, int num_beams, int top_k) throws OrtException {
+        if (max_length > 200)
+            throw new IllegalArgumentException("M2M100-Model: max_length > 200 not support");
+        List<String> results = new ArrayList<>();
+        TranslationCache cache = translationCache;
+        //结果缓存命中的目标不再解码
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < tgt_langs.size(); i++) {
+            String tgt_lang = tgt_langs.get(i);
+            tokenizer.getLangId(tgt_lang);
+            String cached = cache == null ? null : cache.get(src_text, src_lang, tgt_lang, max_length, num_beams, top_k);
+            results.add(cached);
+            if (cached == null) missing.add(i);
         }
-
-        public ArrayList<Long> getSequence() {
-            return sequence;
+        if (missing.isEmpty()) return results;
+        long[] tgt_lang_ids = new long[missing.size()];
+        for (int i = 0; i < missing.size(); i++) {
+            tgt_lang_ids[i] = tokenizer.getLangId(tgt_langs.get(missing.get(i)));
         }
-
-        public float getScore() {
-            return score;
+        try (DecodeBatch batch = openBatch(src_text, src_lang, tgt_lang_ids, max_length, num_beams, top_k)) {
+            while (batch.step()) ;
+            batch.cacheEncoderState(encoderCache, src_text, src_lang);
+            for (int g = 0; g < batch.getGroupCount(); g++) {
+                int i = missing.get(g);
+                String result = tokenizer.decode(batch.getBestSequence(g), false);
+                results.set(i, result);
+                if (cache != null) cache.put(src_text, src_lang, tgt_langs.get(i), max_length, num_beams, top_k, result);
+            }
         }
+        return results;
+    }
 
-        public HashMap<String, OnnxTensor> getPastKeyValues() {
-            return pastKeyValues;
-        }
+    public List<String> translateBatch(List<String> src_texts, String src_lang, String tgt_lang, int max_length) throws OrtException {
+        return translateBatch(src_texts, src_lang, tgt_lang, max_length, generationConfig.numBeams, generationConfig.topK);
+    }
 
+    public List<String> translateBatch(List<String> src_texts, String src_lang, String tgt_lang, GenerationConfig generation_config) throws OrtException {
+        return translateBatch(src_texts, src_lang, tgt_lang, generation_config.maxLength, generation_config.numBeams,
+                generation_config.topK);
+    }
 
+    /**
+     * 多句一起翻译：右侧用padTokenId补齐，encoder只跑一次，所有句子的beam拼在同一个decoder batch里解码
+     */
+    public List<String> translateBatch(List<String> src_texts, String src_lang, String tgt_lang, int max_length, int num_beams, int top_k) throws OrtException {
+        return translateBatch(src_texts, src_lang, tgt_lang, max_length, num_beams, top_k, false);
     }
 
-    private static List<Beam> selectTopBeams(List<Beam> beams, int num_beams) {
-        Collections.sort(beams, new Comparator<Beam>() {
-            @Override
-            public int compare(Beam a, Beam b) {
-                return Float.compare(b.getScore(), a.getScore());
+    /** skip_special_tokens为true时译文里不带语言token和</s>，DocumentTranslator拼接段落用 */
+    List<String> translateBatch(List<String> src_texts, String src_lang, String tgt_lang, int max_length, int num_beams, int top_k,
+                                boolean skip_special_tokens) throws OrtException {
+        if (max_length > 200)
+            throw new IllegalArgumentException("M2M100-Model: max_length > 200 not support");
+        List<String> results = new ArrayList<>();
+        if (src_texts.isEmpty()) return results;
+        TranslationCache cache = translationCache;
+        //结果缓存命中的句子不进batch
+        List<Integer> missing = new ArrayList<>();
+        List<String> missing_texts = new ArrayList<>();
+        for (int i = 0; i < src_texts.size(); i++) {
+            String src_text = src_texts.get(i);
+            String cached = cache == null ? null
+                    : cache.get(src_text, src_lang, tgt_lang, max_length, num_beams, top_k, skip_special_tokens);
+            results.add(cached);
+            if (cached == null) {
+                missing.add(i);
+                missing_texts.add(src_text);
             }
-        });
-        return beams.subList(0, Math.min(num_beams, beams.size()));
+        }
+        if (missing.isEmpty()) return results;
+        Map<String, Object> encoded = tokenizer.call(missing_texts, src_lang);
+        long[][] input_ids = (long[][]) encoded.get("input_ids");
+        long[][] attention_mask = (long[][]) encoded.get("attention_mask");
+        long[] tgt_lang_ids = new long[missing_texts.size()];
+        Arrays.fill(tgt_lang_ids, tokenizer.getLangId(tgt_lang));
+        List<ArrayList<Long>> best_sequences = generate(input_ids, attention_mask, tgt_lang_ids, max_length, num_beams, top_k);
+        for (int j = 0; j < best_sequences.size(); j++) {
+            String result = tokenizer.decode(best_sequences.get(j), skip_special_tokens);
+            results.set(missing.get(j), result);
+            if (cache != null)
+                cache.put(missing_texts.get(j), src_lang, tgt_lang, max_length, num_beams, top_k, skip_special_tokens, result);
+        }
+        return results;
+    }
+
+    /** 单句解码成tgt_lang_ids.length个目标，encoder只跑一次，encoderCache命中时连encoder也不跑 */
+    private DecodeBatch openBatch(String src_text, String src_lang, long[] tgt_lang_ids,
+                                  int max_length, int num_beams, int top_k) throws OrtException {
+        EncoderCache.Entry entry = encoderCache.acquire(src_text, src_lang);
+        if (entry != null) {
+            try {
+                return new DecodeBatch(this, entry, tgt_lang_ids, max_length, num_beams, top_k);
+            } catch (RuntimeException e) {
+                entry.release();
+                throw e;
+            }
+        }
+        Map<String, Object> encoded = tokenizer.callWithSrcLangOnce(src_text, src_lang);
+        long[][] input_ids = (long[][]) encoded.get("input_ids");
+        long[][] attention_mask = (long[][]) encoded.get("attention_mask");
+        int n = tgt_lang_ids.length;
+        return new DecodeBatch(this, input_ids, attention_mask, new int[n], tgt_lang_ids,
+                DecodeBatch.filled(n, max_length), DecodeBatch.filled(n, num_beams), DecodeBatch.filled(n, top_k));
+    }
+
+    private List<ArrayList<Long>> generate(long[][] input_ids, long[][] attention_mask, long[] forced_token_ids,
+                                           int max_length, int num_beams, int top_k) throws OrtException {
+        try (DecodeBatch batch = new DecodeBatch(this, input_ids, attention_mask, forced_token_ids, max_length, num_beams, top_k)) {
+            while (batch.step()) ;
+            List<ArrayList<Long>> best_sequences = new ArrayList<>();
+            for (int g = 0; g < batch.getGroupCount(); g++) {
+                best_sequences.add(batch.getBestSequence(g));
+            }
+            return best_sequences;
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,172 @@
+package com.nwdxlgzs.translate;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+
+/**
+ * 单个模型（encoder或decoder）的ORT session参数，不可变，用Builder构造。
+ * 默认值和原来写死的一样：ALL_OPT、先试NNAPI、不行就走CPU并开arena，线程数交给ORT决定。
+ * encoder和decoder各传一份可以分别限定线程数，两个session就不会抢同一批核。
+ */
+public final class SessionConfig {
+    public static final SessionConfig DEFAULT = new Builder().build();
+
+    public final OrtSession.SessionOptions.OptLevel optLevel;
+    //0表示用ORT的默认值
+    public final int intraOpThreads;
+    public final int interOpThreads;
+    //null表示用ORT的默认值（SEQUENTIAL）
+    public final OrtSession.SessionOptions.ExecutionMode executionMode;
+    public final boolean cpuArena;
+    public final boolean memoryPattern;
+    public final boolean useNnapi;
+    public final Map<String, String> configEntries;
+    //为true时缓存ORT图优化的结果，见OptimizedModelCache；目录为null时放在模型旁边
+    public final boolean cacheOptimizedModel;
+    public final File optimizedModelDir;
+
+    private SessionConfig(Builder builder) {
+        this.optLevel = builder.optLevel;
+        this.intraOpThreads = builder.intraOpThreads;
+        this.interOpThreads = builder.interOpThreads;
+        this.executionMode = builder.executionMode;
+        this.cpuArena = builder.cpuArena;
+        this.memoryPattern = builder.memoryPattern;
+        this.useNnapi = builder.useNnapi;
+        this.configEntries = Collections.unmodifiableMap(new LinkedHashMap<>(builder.configEntries));
+        this.cacheOptimizedModel = builder.cacheOptimizedModel;
+        this.optimizedModelDir = builder.optimizedModelDir;
+    }
+
+    public Builder toBuilder() {
+        Builder builder = new Builder();
+        builder.optLevel = optLevel;
+        builder.intraOpThreads = intraOpThreads;
+        builder.interOpThreads = interOpThreads;
+        builder.executionMode = executionMode;
+        builder.cpuArena = cpuArena;
+        builder.memoryPattern = memoryPattern;
+        builder.useNnapi = useNnapi;
+        builder.configEntries.putAll(configEntries);
+        builder.cacheOptimizedModel = cacheOptimizedModel;
+        builder.optimizedModelDir = optimizedModelDir;
+        return builder;
+    }
+
+    /** nnapi为false时只用CPU，用于NNAPI不可用或者建session失败后的回退 */
+    OrtSession.SessionOptions createOptions(boolean nnapi) throws OrtException {
+        return createOptions(nnapi, optLevel, null);
+    }
+
+    /** save_optimized_path不为null时ORT建session时把优化后的图以ORT格式写到这里 */
+    OrtSession.SessionOptions createOptions(boolean nnapi, OrtSession.SessionOptions.OptLevel opt_level,
+                                            String save_optimized_path) throws OrtException {
+        OrtSession.SessionOptions options = new OrtSession.SessionOptions();
+        try {
+            options.setOptimizationLevel(opt_level);
+            if (save_optimized_path != null) {
+                options.setOptimizedModelFilePath(save_optimized_path);
+                options.addConfigEntry("session.save_model_format", "ORT");
+            }
+            if (intraOpThreads > 0) options.setIntraOpNumThreads(intraOpThreads);
+            if (interOpThreads > 0) options.setInterOpNumThreads(interOpThreads);
+            if (executionMode != null) options.setExecutionMode(executionMode);
+            options.setMemoryPatternOptimization(memoryPattern);
+            for (Map.Entry<String, String> entry : configEntries.entrySet()) {
+                options.addConfigEntry(entry.getKey(), entry.getValue());
+            }
+            if (nnapi) {
+                options.addNnapi();
+            } else {
+                options.addCPU(cpuArena);
+            }
+            return options;
+        } catch (OrtException | RuntimeException e) {
+            options.close();
+            throw e;
+        }
+    }
+
+    public static class Builder {
+        private OrtSession.SessionOptions.OptLevel optLevel = OrtSession.SessionOptions.OptLevel.ALL_OPT;
+        private int intraOpThreads = 0;
+        private int interOpThreads = 0;
+        private OrtSession.SessionOptions.ExecutionMode executionMode = null;
+        private boolean cpuArena = true;
+        private boolean memoryPattern = true;
+        private boolean useNnapi = true;
+        private final Map<String, String> configEntries = new LinkedHashMap<>();
+        private boolean cacheOptimizedModel = false;
+        private File optimizedModelDir = null;
+
+        public Builder setOptLevel(OrtSession.SessionOptions.OptLevel opt_level) {
+            if (opt_level == null) throw new IllegalArgumentException("opt_level == null");
+            this.optLevel = opt_level;
+            return this;
+        }
+
+        /** 单个算子内部的线程数，0表示ORT默认（物理核数） */
+        public Builder setIntraOpThreads(int threads) {
+            if (threads < 0) throw new IllegalArgumentException("threads < 0");
+            this.intraOpThreads = threads;
+            return this;
+        }
+
+        /** PARALLEL模式下算子之间的线程数，0表示ORT默认 */
+        public Builder setInterOpThreads(int threads) {
+            if (threads < 0) throw new IllegalArgumentException("threads < 0");
+            this.interOpThreads = threads;
+            return this;
+        }
+
+        public Builder setExecutionMode(OrtSession.SessionOptions.ExecutionMode execution_mode) {
+            this.executionMode = execution_mode;
+            return this;
+        }
+
+        /** CPU内存arena，关掉后峰值内存低一些，但每次run都要重新分配 */
+        public Builder setCpuArena(boolean cpu_arena) {
+            this.cpuArena = cpu_arena;
+            return this;
+        }
+
+        /** 输入形状每次都变（比如不同长度的句子）时memory pattern基本用不上，可以关掉 */
+        public Builder setMemoryPattern(boolean memory_pattern) {
+            this.memoryPattern = memory_pattern;
+            return this;
+        }
+
+        /** false时直接用CPU，不去试NNAPI */
+        public Builder setUseNnapi(boolean use_nnapi) {
+            this.useNnapi = use_nnapi;
+            return this;
+        }
+
+        /** 原样传给SessionOptions.addConfigEntry，比如"session.intra_op.allow_spinning" -> "0" */
+        public Builder addConfigEntry(String key, String value) {
+            configEntries.put(key, value);
+            return this;
+        }
+
+        /**
+         * 第一次加载时把图优化的结果存下来，之后模型和ORT版本没变就直接用，省掉每次启动的图优化。
+         * 只在纯CPU的session上生效，NNAPI会把节点编译掉，存不了
+         *
+         * @param dir 缓存目录，null表示放在模型文件旁边（模型目录要可写）
+         */
+        public Builder setOptimizedModelCache(boolean enabled, File dir) {
+            this.cacheOptimizedModel = enabled;
+            this.optimizedModelDir = dir;
+            return this;
+        }
+
+        public SessionConfig build() {
+            return new SessionConfig(this);
+        }
+    }
+}
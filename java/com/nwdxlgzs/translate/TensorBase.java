@@ -4,6 +4,8 @@ import static ai.onnxruntime.OnnxJavaType.*;
 
 import ai.onnxruntime.*;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Array;
 import java.nio.*;
 import java.util.ArrayList;
@@ -39,9 +41,81 @@ public class TensorBase {
     }
 
     public final OrtEnvironment ortEnv;
+    protected final DirectBufferPool bufferPool;
 
     public TensorBase(OrtEnvironment ortEnv) {
+        this(ortEnv, DirectBufferPool.getDefault());
+    }
+
+    public TensorBase(OrtEnvironment ortEnv, DirectBufferPool bufferPool) {
         this.ortEnv = ortEnv;
+        this.bufferPool = bufferPool;
+    }
+
+    public DirectBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /** 先按config试NNAPI；addNnapi不支持、或者带NNAPI建session失败时换成纯CPU再建一次 */
+    protected OrtSession createSession(ModelSource source, SessionConfig config) throws OrtException {
+        if (config.useNnapi) {
+            OrtSession.SessionOptions options = null;
+            try {
+                options = config.createOptions(true);
+                return source.createSession(ortEnv, options);
+            } catch (OrtException ignored) {
+            } finally {
+                if (options != null) options.close();
+            }
+        }
+        //优化缓存按文件算checksum，只支持文件来源
+        if (config.cacheOptimizedModel && source.getFile() != null) return createCachedSession(source.getFile(), config);
+        try (OrtSession.SessionOptions options = config.createOptions(false)) {
+            return source.createSession(ortEnv, options);
+        }
+    }
+
+    /**
+     * 有对得上的优化缓存就关掉图优化直接加载它，加载失败当作缓存损坏删掉；
+     * 否则正常建session，顺便让ORT把优化结果写到临时文件，成功后再改名，写到一半的文件不会被当成缓存。
+     * 同一个缓存文件在进程内串行：多组session并行加载时第一个生成缓存，其余的直接加载它
+     */
+    private OrtSession createCachedSession(File model, SessionConfig config) throws OrtException {
+        File cached;
+        try {
+            cached = OptimizedModelCache.cacheFile(model, config.optimizedModelDir, ortEnv.getVersion(), config.optLevel);
+        } catch (IOException e) {
+            throw new OrtException("Failed to checksum " + model + ": " + e.getMessage());
+        }
+        synchronized (OptimizedModelCache.lockFor(cached)) {
+            if (cached.isFile()) {
+                try (OrtSession.SessionOptions options = config.createOptions(false, OrtSession.SessionOptions.OptLevel.NO_OPT, null)) {
+                    return ortEnv.createSession(cached.getPath(), options);
+                } catch (OrtException e) {
+                    cached.delete();
+                }
+            }
+            File tmp = null;
+            try {
+                tmp = OptimizedModelCache.createTempFile(cached);
+            } catch (IOException ignored) {
+                //缓存目录写不了就不缓存
+            }
+            OrtSession session;
+            try (OrtSession.SessionOptions options = config.createOptions(false, config.optLevel, tmp == null ? null : tmp.getPath())) {
+                session = ortEnv.createSession(model.getPath(), options);
+            } catch (OrtException | RuntimeException e) {
+                if (tmp != null) tmp.delete();
+                throw e;
+            }
+            if (tmp == null) return session;
+            if (tmp.length() > 0 && (tmp.renameTo(cached) || (cached.delete() && tmp.renameTo(cached)))) {
+                OptimizedModelCache.deleteStale(model, cached);
+            } else {
+                tmp.delete();
+            }
+            return session;
+        }
     }
 
     public static float[] softmax(float[] logits) {
@@ -63,6 +137,146 @@ public class TensorBase {
         return exp;
     }
 
+    /**
+     * log_softmax和top-k合成一遍：在线算log-sum-exp，同时用大小为k的小根堆留下最大的k个logit，
+     * 只给这k个算log概率。结果按从大到小写进out_indices/out_log_probs（长度>=k，可复用），返回个数。
+     * 不分配内存；-inf的位置视为被屏蔽，不会出现在结果里
+     */
+    public static int logSoftmaxTopK(float[] logits, int offset, int length, int k,
+                                     int[] out_indices, float[] out_log_probs) {
+        return logSoftmaxTopK(FloatBuffer.wrap(logits), offset, length, k, out_indices, out_log_probs);
+    }
+
+    public static int logSoftmaxTopK(FloatBuffer logits, int offset, int length, int k,
+                                     int[] out_indices, float[] out_log_probs) {
+        k = Math.min(k, length);
+        float max = Float.NEGATIVE_INFINITY;
+        double sum = 0.0;
+        int size = 0;
+        for (int i = 0; i < length; i++) {
+            float x = logits.get(offset + i);
+            if (x == Float.NEGATIVE_INFINITY) continue;
+            if (x > max) {
+                sum = sum * Math.exp(max - x) + 1.0;
+                max = x;
+            } else {
+                sum += Math.exp(x - max);
+            }
+            if (size < k) {
+                out_log_probs[size] = x;
+                out_indices[size] = i;
+                siftUp(out_indices, out_log_probs, size++);
+            } else if (k > 0 && x > out_log_probs[0]) {
+                out_log_probs[0] = x;
+                out_indices[0] = i;
+                siftDown(out_indices, out_log_probs, 0, size);
+            }
+        }
+        if (size == 0) return 0;
+        float log_sum = max + (float) Math.log(sum);
+        // 堆排序：每次把堆顶（最小）换到末尾，排完就是从大到小
+        for (int end = size - 1; end > 0; end--) {
+            swap(out_indices, out_log_probs, 0, end);
+            siftDown(out_indices, out_log_probs, 0, end);
+        }
+        for (int i = 0; i < size; i++) {
+            out_log_probs[i] -= log_sum;
+        }
+        return size;
+    }
+
+    private static void siftUp(int[] indices, float[] values, int i) {
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (values[i] >= values[parent]) break;
+            swap(indices, values, i, parent);
+            i = parent;
+        }
+    }
+
+    private static void siftDown(int[] indices, float[] values, int i, int size) {
+        while (true) {
+            int smallest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < size && values[left] < values[smallest]) smallest = left;
+            if (right < size && values[right] < values[smallest]) smallest = right;
+            if (smallest == i) return;
+            swap(indices, values, i, smallest);
+            i = smallest;
+        }
+    }
+
+    private static void swap(int[] indices, float[] values, int a, int b) {
+        int ti = indices[a];
+        indices[a] = indices[b];
+        indices[b] = ti;
+        float tv = values[a];
+        values[a] = values[b];
+        values[b] = tv;
+    }
+
+    public static int argmax(float[] values) {
+        return argmax(FloatBuffer.wrap(values), 0, values.length);
+    }
+
+    public static int argmax(FloatBuffer values, int offset, int length) {
+        int best = 0;
+        float best_value = values.get(offset);
+        for (int i = 1; i < length; i++) {
+            float value = values.get(offset + i);
+            if (value > best_value) {
+                best = i;
+                best_value = value;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * [batch, seq, width]这类float tensor按行看的视图，不像getValue那样拆成多维Java数组。
+     * tensor由direct buffer创建（比如绑定好的输出）时直接用那块内存，零拷贝；
+     * ORT自己分配的输出Java API只给拷贝，这时整块拷一次
+     */
+    public static FloatRows floatRows(OnnxTensor t) {
+        long[] shape = t.getInfo().getShape();
+        FloatBuffer data = null;
+        if (t.getBufferRef().isPresent()) {
+            Buffer ref = t.getBufferRef().get();
+            if (ref instanceof FloatBuffer) {
+                data = (FloatBuffer) ref;
+            } else if (ref instanceof ByteBuffer) {
+                data = ((ByteBuffer) ref).duplicate().order(ByteOrder.nativeOrder()).asFloatBuffer();
+            }
+        }
+        if (data == null) data = t.getFloatBuffer();
+        return new FloatRows(data, shape);
+    }
+
+    public static class FloatRows {
+        public final FloatBuffer data;
+        public final int batch;
+        public final int seq;
+        public final int width;
+
+        FloatRows(FloatBuffer data, long[] shape) {
+            this.data = data;
+            this.width = (int) shape[shape.length - 1];
+            this.seq = shape.length >= 3 ? (int) shape[shape.length - 2] : 1;
+            this.batch = (int) (numElements(shape) / Math.max((long) seq * width, 1));
+        }
+
+        /** 第b行第position个位置的起始偏移 */
+        public int offset(int b, int position) {
+            return (b * seq + position) * width;
+        }
+
+        /** 第b行最后一个位置（下一个token的logits）的起始偏移 */
+        public int lastOffset(int b) {
+            return offset(b, seq - 1);
+        }
+    }
+
     public static int[] topK(float[] values, int k) {
         int n = values.length;
         k = Math.min(k, n);
@@ -140,6 +354,28 @@ public class TensorBase {
     }
 
 
+    /** 沿第一维按 rows 取行（可重复），用于 beam 重排 past_key_values 或把 batch=1 扩成 n 行 */
+    public OnnxTensor gatherRows(OnnxTensor src, int[] rows) throws OrtException {
+        long[] shape = src.getInfo().getShape();
+        OnnxJavaType type = src.getInfo().type;
+        int rowBytes = (int) (numElements(shape) / Math.max(shape[0], 1) * type.size);
+        ByteBuffer srcBuf = src.getByteBuffer();
+        for (int row : rows) {
+            if (row < 0 || row >= shape[0])
+                throw new IllegalArgumentException("Row " + row + " out of range " + shape[0]);
+        }
+        ByteBuffer dstBuf = bufferPool.acquire(rows.length * rowBytes);
+        for (int row : rows) {
+            srcBuf.limit(row * rowBytes + rowBytes);
+            srcBuf.position(row * rowBytes);
+            dstBuf.put(srcBuf);
+        }
+        dstBuf.rewind();
+        long[] newShape = shape.clone();
+        newShape[0] = rows.length;
+        return createPooled(dstBuf, newShape, type);
+    }
+
     public OnnxTensor tokens2Tensor(List<Long> tokens) throws OrtException {
         long[] arr = new long[tokens.size()];
         for (int i = 0; i < tokens.size(); i++) {
@@ -170,7 +406,20 @@ public class TensorBase {
             throw new IllegalArgumentException("Array type does not match specified OnnxJavaType");
         }
         ByteBuffer buf = toByteBuffer(array, type);
-        return create(buf, shape, type);
+        return createPooled(buf, shape, type);
+    }
+
+    /** buf必须来自bufferPool，tensor close之后buf回到池里 */
+    private OnnxTensor createPooled(ByteBuffer buf, long[] shape, OnnxJavaType type) throws OrtException {
+        OnnxTensor tensor;
+        try {
+            tensor = create(buf, shape, type);
+        } catch (OrtException | RuntimeException e) {
+            bufferPool.release(buf);
+            throw e;
+        }
+        bufferPool.track(tensor, buf);
+        return tensor;
     }
 
     public static OnnxJavaType autoType(Class<?> cls) {
@@ -212,15 +461,17 @@ public class TensorBase {
 
     public OnnxTensor zeros(long[] shape, OnnxJavaType type) throws OrtException {
         int bytes = (int) (numElements(shape) * type.size);
-        ByteBuffer buf = ByteBuffer.allocateDirect(bytes)
-                .order(ByteOrder.nativeOrder());
-        return create(buf, shape, type);
+        //池里拿的buffer是脏的，要自己清零
+        ByteBuffer buf = bufferPool.acquire(bytes);
+        int i = 0;
+        for (; i + 8 <= bytes; i += 8) buf.putLong(i, 0L);
+        for (; i < bytes; i++) buf.put(i, (byte) 0);
+        return createPooled(buf, shape, type);
     }
 
     public OnnxTensor ones(long[] shape, OnnxJavaType type) throws OrtException {
         int n = (int) numElements(shape);
-        ByteBuffer buf = ByteBuffer.allocateDirect(n * type.size)
-                .order(ByteOrder.nativeOrder());
+        ByteBuffer buf = bufferPool.acquire(n * type.size);
         switch (type) {
             case FLOAT:
                 for (int i = 0; i < n; i++) buf.putFloat(1f);
@@ -248,10 +499,11 @@ public class TensorBase {
             case BFLOAT16:
                 for (int i = 0; i < n; i++) buf.putShort((short) 0x3F80);
             default:
+                bufferPool.release(buf);
                 throw new IllegalArgumentException("Unsupported type " + type);
         }
         buf.rewind();
-        return create(buf, shape, type);
+        return createPooled(buf, shape, type);
     }
 
     public OnnxTensor zerosLike(OnnxTensor src) throws OrtException {
@@ -266,7 +518,7 @@ public class TensorBase {
     public OnnxTensor flat(OnnxTensor src) throws OrtException {
         long[] shape = src.getInfo().getShape();
         long total = numElements(shape);
-        return create(toByteBuffer(src), new long[]{total}, src.getInfo().type);
+        return createPooled(toByteBuffer(src), new long[]{total}, src.getInfo().type);
     }
 
 
@@ -289,8 +541,7 @@ public class TensorBase {
         OnnxJavaType type = src.getInfo().type;
         int elemSize = type.size;
         ByteBuffer srcBuf = toByteBuffer(src);
-        ByteBuffer dstBuf = ByteBuffer.allocateDirect((int) (numElements(newShape) * elemSize))
-                .order(ByteOrder.nativeOrder());
+        ByteBuffer dstBuf = bufferPool.acquire((int) (numElements(newShape) * elemSize));
         int[] stride = new int[dims];
         stride[dims - 1] = elemSize;
         for (int i = dims - 2; i >= 0; i--) {
@@ -314,18 +565,19 @@ public class TensorBase {
             }
             if (d < 0) break;
         }
+        bufferPool.release(srcBuf);
         dstBuf.rewind();
-        return create(dstBuf, newShape, type);
+        return createPooled(dstBuf, newShape, type);
     }
 
 
-    private static ByteBuffer toByteBuffer(OnnxTensor t) throws OrtException {
+    private ByteBuffer toByteBuffer(OnnxTensor t) throws OrtException {
         Object arr = t.getValue();
         OnnxJavaType type = t.getInfo().type;
         return toByteBuffer(arr, type);
     }
 
-    private static ByteBuffer toByteBuffer(Object arr) {
+    private ByteBuffer toByteBuffer(Object arr) {
         Class<?> arrayClass = arr.getClass();
         while (arrayClass.isArray()) {
             arrayClass = arrayClass.getComponentType();
@@ -333,11 +585,10 @@ public class TensorBase {
         return toByteBuffer(arr, autoType(arrayClass));
     }
 
-    private static ByteBuffer toByteBuffer(Object arr, OnnxJavaType type) {
+    private ByteBuffer toByteBuffer(Object arr, OnnxJavaType type) {
         long[] shape = getArrayShape(arr);
         long totalElements = numElements(shape);
-        ByteBuffer buf = ByteBuffer.allocateDirect((int) (totalElements * type.size))
-                .order(ByteOrder.nativeOrder());
+        ByteBuffer buf = bufferPool.acquire((int) (totalElements * type.size));
 
         // 使用递归方式填充缓冲区
         fillBuffer(arr, buf, type);
@@ -403,7 +654,7 @@ public class TensorBase {
 
     public OnnxTensor copy(OnnxTensor src) throws OrtException {
         ByteBuffer data = toByteBuffer(src);
-        return create(data, src.getInfo().getShape(), src.getInfo().type);
+        return createPooled(data, src.getInfo().getShape(), src.getInfo().type);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,110 @@
+package com.nwdxlgzs.translate;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * tokenizer.json编译成的二进制快照：词表、特殊/语言token和编译好的merge表，冷启动时内存映射读进来，不用解析JSON。
+ * 头部记录了tokenizer.json的大小和修改时间，对不上就认为过期。
+ */
+final class TokenizerSnapshot {
+    private static final int MAGIC = 0x4D325453;
+    private static final int VERSION = 2;
+
+    private TokenizerSnapshot() {
+    }
+
+    /** 快照不存在、过期或者损坏时返回null */
+    static M2M100TokenizerFast read(File snapshot, File source) {
+        if (!snapshot.isFile()) return null;
+        try (RandomAccessFile file = new RandomAccessFile(snapshot, "r")) {
+            ByteBuffer in = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) return null;
+            if (in.getLong() != source.length() || in.getLong() != source.lastModified()) return null;
+            long unk_token_id = in.getLong();
+            long pad_token_id = in.getLong();
+            long bos_token_id = in.getLong();
+            long eos_token_id = in.getLong();
+            VocabStore vocab = VocabStore.readFrom(in);
+            int lang_count = in.getInt();
+            Map<String, Long> lang_code_to_id = new HashMap<>();
+            for (int i = 0; i < lang_count; i++) {
+                String code = readString(in);
+                lang_code_to_id.put(code, in.getLong());
+            }
+            int special_count = in.getInt();
+            Set<String> special_strs = new HashSet<>();
+            for (int i = 0; i < special_count; i++) {
+                special_strs.add(readString(in));
+            }
+            BpeMergeTable merges = BpeMergeTable.readFrom(in);
+            if (in.getInt() != MAGIC) return null;
+            return new M2M100TokenizerFast(vocab, unk_token_id, pad_token_id, bos_token_id, eos_token_id,
+                    lang_code_to_id, special_strs, merges);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /** 先写临时文件再改名，写到一半的快照不会被读到 */
+    static void write(M2M100TokenizerFast tokenizer, File snapshot, File source) throws IOException {
+        File tmp = new File(snapshot.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(source.length());
+            out.writeLong(source.lastModified());
+            out.writeLong(tokenizer.unkTokenId);
+            out.writeLong(tokenizer.padTokenId);
+            out.writeLong(tokenizer.bosTokenId);
+            out.writeLong(tokenizer.eosTokenId);
+            tokenizer.getVocab().writeTo(out);
+            Map<String, Long> lang_code_to_id = tokenizer.getLangCodeToId();
+            out.writeInt(lang_code_to_id.size());
+            for (Map.Entry<String, Long> entry : lang_code_to_id.entrySet()) {
+                writeString(out, entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            Set<String> special_strs = tokenizer.getSpecialStrs();
+            out.writeInt(special_strs.size());
+            for (String special : special_strs) {
+                writeString(out, special);
+            }
+            tokenizer.getBpeMerges().writeTo(out);
+            out.writeInt(MAGIC);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        if (!tmp.renameTo(snapshot)) {
+            snapshot.delete();
+            if (!tmp.renameTo(snapshot)) {
+                tmp.delete();
+                throw new IOException("Failed to write " + snapshot);
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,9 @@
+package com.nwdxlgzs.translate;
+
+/**
+ * 流式翻译回调，在解码线程上调用
+ */
+public interface TranslateListener {
+    /** 新确定下来的一段译文，只包含增量部分，不含特殊token */
+    void onPartial(String text);
+}
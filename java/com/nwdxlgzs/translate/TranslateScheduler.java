@@ -0,0 +1,242 @@
+package com.nwdxlgzs.translate;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 把多个线程并发提交的翻译请求攒成batch再交给Polyglots.translateBatch。
+ * 同一组(src_lang, tgt_lang, max_length, num_beams, top_k)的请求才能合并，
+ * 攒够max_batch_size条或者最早的一条等满max_wait_millis就立刻发车。
+ */
+public class TranslateScheduler implements AutoCloseable {
+    private final Polyglots polyglots;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final BlockingQueue<Request> queue;
+    private final Thread worker;
+    private volatile boolean closed = false;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong totalQueueWaitNanos = new AtomicLong();
+    private final AtomicLong maxQueueWaitNanos = new AtomicLong();
+
+    public TranslateScheduler(Polyglots polyglots) {
+        this(polyglots, 16, 5, 1024);
+    }
+
+    public TranslateScheduler(Polyglots polyglots, int max_batch_size, long max_wait_millis, int max_queue_size) {
+        if (max_batch_size < 1) throw new IllegalArgumentException("max_batch_size < 1");
+        if (max_wait_millis < 0) throw new IllegalArgumentException("max_wait_millis < 0");
+        this.polyglots = polyglots;
+        this.maxBatchSize = max_batch_size;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(max_wait_millis);
+        this.queue = new LinkedBlockingQueue<>(max_queue_size);
+        this.worker = new Thread(this::loop, "TranslateScheduler");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public CompletableFuture<String> submit(String src_text, String src_lang, String tgt_lang, int max_length) {
+        return submit(src_text, src_lang, tgt_lang, max_length, polyglots.generationConfig.numBeams,
+                polyglots.generationConfig.topK);
+    }
+
+    public CompletableFuture<String> submit(String src_text, String src_lang, String tgt_lang, GenerationConfig generation_config) {
+        return submit(src_text, src_lang, tgt_lang, generation_config.maxLength, generation_config.numBeams,
+                generation_config.topK);
+    }
+
+    public CompletableFuture<String> submit(String src_text, String src_lang, String tgt_lang, int max_length, int num_beams, int top_k) {
+        Request request = new Request(src_text, new BatchKey(src_lang, tgt_lang, max_length, num_beams, top_k));
+        if (closed) {
+            request.future.completeExceptionally(new RejectedExecutionException("TranslateScheduler closed"));
+        } else if (!queue.offer(request)) {
+            request.future.completeExceptionally(new RejectedExecutionException("TranslateScheduler queue full"));
+        } else if (closed && queue.remove(request)) {
+            //offer和close撞上了：worker可能已经退出，自己拿回来拒掉；remove失败说明已经被worker或close取走，由它们处理
+            request.future.completeExceptionally(new RejectedExecutionException("TranslateScheduler closed"));
+        }
+        return request.future;
+    }
+
+    private void loop() {
+        //按BatchKey分开攒，LinkedHashMap保证先到的组先被检查
+        LinkedHashMap<BatchKey, List<Request>> pending = new LinkedHashMap<>();
+        while (true) {
+            long now = System.nanoTime();
+            long deadline = Long.MAX_VALUE;
+            for (List<Request> requests : pending.values()) {
+                deadline = Math.min(deadline, requests.get(0).enqueueNanos + maxWaitNanos);
+            }
+            Request request = null;
+            try {
+                if (pending.isEmpty()) {
+                    if (closed && queue.isEmpty()) break;
+                    request = queue.poll(50, TimeUnit.MILLISECONDS);
+                } else if (deadline > now) {
+                    request = queue.poll(deadline - now, TimeUnit.NANOSECONDS);
+                }
+            } catch (InterruptedException e) {
+                closed = true;
+            }
+            while (request != null) {
+                List<Request> requests = pending.get(request.key);
+                if (requests == null) {
+                    requests = new ArrayList<>();
+                    pending.put(request.key, requests);
+                }
+                requests.add(request);
+                request = queue.poll();
+            }
+            now = System.nanoTime();
+            Iterator<Map.Entry<BatchKey, List<Request>>> it = pending.entrySet().iterator();
+            while (it.hasNext()) {
+                List<Request> requests = it.next().getValue();
+                boolean expired = now - requests.get(0).enqueueNanos >= maxWaitNanos;
+                while (requests.size() >= maxBatchSize) {
+                    List<Request> head = new ArrayList<>(requests.subList(0, maxBatchSize));
+                    requests.subList(0, maxBatchSize).clear();
+                    runBatch(head);
+                }
+                if (!requests.isEmpty() && (expired || closed)) {
+                    runBatch(requests);
+                    requests = new ArrayList<>();
+                }
+                if (requests.isEmpty()) it.remove();
+            }
+        }
+        //close之后才挤进队列的请求
+        Request request;
+        while ((request = queue.poll()) != null) {
+            request.future.completeExceptionally(new RejectedExecutionException("TranslateScheduler closed"));
+        }
+    }
+
+    private void runBatch(List<Request> requests) {
+        long start = System.nanoTime();
+        List<String> texts = new ArrayList<>();
+        for (Request request : requests) {
+            long wait = start - request.enqueueNanos;
+            totalQueueWaitNanos.addAndGet(wait);
+            long max;
+            do {
+                max = maxQueueWaitNanos.get();
+            } while (wait > max && !maxQueueWaitNanos.compareAndSet(max, wait));
+            texts.add(request.text);
+        }
+        requestCount.addAndGet(requests.size());
+        batchCount.incrementAndGet();
+        BatchKey key = requests.get(0).key;
+        try {
+            List<String> results = polyglots.translateBatch(texts, key.srcLang, key.tgtLang, key.maxLength, key.numBeams, key.topK);
+            for (int i = 0; i < requests.size(); i++) {
+                requests.get(i).future.complete(results.get(i));
+            }
+        } catch (Throwable e) {
+            for (Request request : requests) {
+                request.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /** 当前排队中（尚未被worker取走）的请求数 */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    public double getAverageBatchSize() {
+        long batches = batchCount.get();
+        return batches == 0 ? 0 : (double) requestCount.get() / batches;
+    }
+
+    /** 从submit到所在batch开始执行的平均等待时间 */
+    public double getAverageQueueWaitMillis() {
+        long requests = requestCount.get();
+        return requests == 0 ? 0 : totalQueueWaitNanos.get() / 1e6 / requests;
+    }
+
+    public double getMaxQueueWaitMillis() {
+        return maxQueueWaitNanos.get() / 1e6;
+    }
+
+    /**
+     * 不再接受新请求，已排队的请求全部跑完后返回。
+     * 等待时被中断就恢复中断标记直接返回，worker照样把排队的请求跑完
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        //worker最后一次清空队列之后才offer成功、又没来得及自己remove的请求
+        Request request;
+        while ((request = queue.poll()) != null) {
+            request.future.completeExceptionally(new RejectedExecutionException("TranslateScheduler closed"));
+        }
+    }
+
+    private static class Request {
+        final String text;
+        final BatchKey key;
+        final long enqueueNanos = System.nanoTime();
+        final CompletableFuture<String> future = new CompletableFuture<>();
+
+        Request(String text, BatchKey key) {
+            this.text = text;
+            this.key = key;
+        }
+    }
+
+    private static class BatchKey {
+        final String srcLang;
+        final String tgtLang;
+        final int maxLength;
+        final int numBeams;
+        final int topK;
+
+        BatchKey(String srcLang, String tgtLang, int maxLength, int numBeams, int topK) {
+            this.srcLang = srcLang;
+            this.tgtLang = tgtLang;
+            this.maxLength = maxLength;
+            this.numBeams = numBeams;
+            this.topK = topK;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof BatchKey)) return false;
+            BatchKey other = (BatchKey) o;
+            return maxLength == other.maxLength && numBeams == other.numBeams && topK == other.topK
+                    && Objects.equals(srcLang, other.srcLang) && Objects.equals(tgtLang, other.tgtLang);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(srcLang, tgtLang, maxLength, numBeams, topK);
+        }
+    }
+}
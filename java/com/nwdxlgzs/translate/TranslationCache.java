@@ -0,0 +1,269 @@
+package com.nwdxlgzs.translate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * 翻译结果缓存，key是(原文, 源语言, 目标语言, max_length, num_beams, top_k)。
+ * 内存里一层按条数LRU；可选再挂一层内存映射文件，进程重启后热门条目还在。
+ * 磁盘层是追加写的记录日志，打开时扫一遍建索引；写满时按最近使用顺序保留一半，其余淘汰后原地重写。
+ * 磁盘文件不区分模型，换模型时要换文件或者clear()。
+ */
+public class TranslationCache implements AutoCloseable {
+    private static final int MAGIC = 0x4D325443;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+
+    private final int maxEntries;
+    private final LinkedHashMap<String, String> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private RandomAccessFile diskFile = null;
+    private MappedByteBuffer disk = null;
+    //key -> 记录在文件里的偏移，按访问顺序排，压缩时保留后面的
+    private final LinkedHashMap<String, Integer> diskIndex = new LinkedHashMap<>(16, 0.75f, true);
+    private int diskTail = HEADER_BYTES;
+
+    private long hitCount = 0;
+    private long diskHitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+    private long diskEvictionCount = 0;
+
+    /** 只有内存层 */
+    public TranslationCache(int max_entries) {
+        if (max_entries < 0) throw new IllegalArgumentException("max_entries < 0");
+        this.maxEntries = max_entries;
+    }
+
+    /**
+     * 内存层加磁盘层
+     *
+     * @param disk_capacity_bytes 磁盘文件映射的大小，已有文件更大时按文件大小
+     */
+    public TranslationCache(int max_entries, File disk_file, int disk_capacity_bytes) throws IOException {
+        this(max_entries);
+        if (disk_capacity_bytes <= HEADER_BYTES) throw new IllegalArgumentException("disk_capacity_bytes too small");
+        diskFile = new RandomAccessFile(disk_file, "rw");
+        try {
+            long length = Math.max(diskFile.length(), disk_capacity_bytes);
+            if (length > Integer.MAX_VALUE) throw new IOException("cache file too large: " + length);
+            diskFile.setLength(length);
+            disk = diskFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            loadDisk();
+        } catch (IOException | RuntimeException e) {
+            diskFile.close();
+            diskFile = null;
+            disk = null;
+            throw e;
+        }
+    }
+
+    private void loadDisk() {
+        if (disk.getInt(0) != MAGIC || disk.getInt(4) != VERSION) {
+            resetDisk();
+            return;
+        }
+        int tail = disk.getInt(8);
+        int offset = HEADER_BYTES;
+        //逐条校验长度，遇到写了一半的记录就从那里截断
+        while (offset + 8 <= tail && tail <= disk.capacity()) {
+            int key_len = disk.getInt(offset);
+            int value_len = disk.getInt(offset + 4);
+            if (key_len <= 0 || value_len < 0 || offset + 8L + key_len + value_len > tail) break;
+            diskIndex.put(readString(offset + 8, key_len), offset);
+            offset += 8 + key_len + value_len;
+        }
+        diskTail = offset;
+        writeHeader();
+    }
+
+    private void resetDisk() {
+        diskIndex.clear();
+        diskTail = HEADER_BYTES;
+        disk.putInt(0, MAGIC);
+        disk.putInt(4, VERSION);
+        writeHeader();
+    }
+
+    private void writeHeader() {
+        disk.putInt(8, diskTail);
+        disk.putInt(12, diskIndex.size());
+    }
+
+    public String get(String src_text, String src_lang, String tgt_lang, int max_length, int num_beams, int top_k) {
+        return get(src_text, src_lang, tgt_lang, max_length, num_beams, top_k, false);
+    }
+
+    /** skip_special_tokens区分带不带特殊token解码出来的译文，两种分开缓存 */
+    synchronized String get(String src_text, String src_lang, String tgt_lang, int max_length, int num_beams, int top_k,
+                            boolean skip_special_tokens) {
+        String key = key(src_text, src_lang, tgt_lang, max_length, num_beams, top_k, skip_special_tokens);
+        String value = memory.get(key);
+        if (value != null) {
+            hitCount++;
+            return value;
+        }
+        if (disk != null) {
+            Integer offset = diskIndex.get(key);
+            if (offset != null) {
+                value = readString(offset + 8 + disk.getInt(offset), disk.getInt(offset + 4));
+                hitCount++;
+                diskHitCount++;
+                putMemory(key, value);
+                return value;
+            }
+        }
+        missCount++;
+        return null;
+    }
+
+    public void put(String src_text, String src_lang, String tgt_lang, int max_length, int num_beams, int top_k,
+                    String result) {
+        put(src_text, src_lang, tgt_lang, max_length, num_beams, top_k, false, result);
+    }
+
+    synchronized void put(String src_text, String src_lang, String tgt_lang, int max_length, int num_beams, int top_k,
+                          boolean skip_special_tokens, String result) {
+        String key = key(src_text, src_lang, tgt_lang, max_length, num_beams, top_k, skip_special_tokens);
+        putMemory(key, result);
+        if (disk != null && !diskIndex.containsKey(key)) putDisk(key, result);
+    }
+
+    private void putMemory(String key, String value) {
+        if (maxEntries == 0) return;
+        memory.put(key, value);
+        Iterator<String> it = memory.keySet().iterator();
+        while (memory.size() > maxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+            evictionCount++;
+        }
+    }
+
+    private void putDisk(String key, String value) {
+        byte[] key_bytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] value_bytes = value.getBytes(StandardCharsets.UTF_8);
+        int record = 8 + key_bytes.length + value_bytes.length;
+        if (HEADER_BYTES + record > disk.capacity()) return;
+        if (diskTail + record > disk.capacity()) compactDisk(disk.capacity() / 2 - record);
+        diskIndex.put(key, diskTail);
+        writeRecord(key_bytes, value_bytes);
+        writeHeader();
+    }
+
+    /** 按最近使用顺序保留不超过keep_bytes的记录，其余淘汰，然后从头重写 */
+    private void compactDisk(int keep_bytes) {
+        List<String> keys = new ArrayList<>(diskIndex.keySet());
+        List<byte[][]> kept = new ArrayList<>();
+        int bytes = 0;
+        for (int i = keys.size() - 1; i >= 0; i--) {
+            int offset = diskIndex.get(keys.get(i));
+            int key_len = disk.getInt(offset);
+            int value_len = disk.getInt(offset + 4);
+            if (bytes + 8 + key_len + value_len > keep_bytes) break;
+            bytes += 8 + key_len + value_len;
+            kept.add(new byte[][]{readBytes(offset + 8, key_len), readBytes(offset + 8 + key_len, value_len)});
+        }
+        diskEvictionCount += keys.size() - kept.size();
+        resetDisk();
+        for (int i = kept.size() - 1; i >= 0; i--) {
+            byte[][] record = kept.get(i);
+            diskIndex.put(new String(record[0], StandardCharsets.UTF_8), diskTail);
+            writeRecord(record[0], record[1]);
+        }
+        writeHeader();
+    }
+
+    private void writeRecord(byte[] key_bytes, byte[] value_bytes) {
+        disk.putInt(diskTail, key_bytes.length);
+        disk.putInt(diskTail + 4, value_bytes.length);
+        disk.position(diskTail + 8);
+        disk.put(key_bytes);
+        disk.put(value_bytes);
+        diskTail += 8 + key_bytes.length + value_bytes.length;
+    }
+
+    private byte[] readBytes(int offset, int length) {
+        byte[] bytes = new byte[length];
+        disk.position(offset);
+        disk.get(bytes);
+        return bytes;
+    }
+
+    private String readString(int offset, int length) {
+        return new String(readBytes(offset, length), StandardCharsets.UTF_8);
+    }
+
+    private static String key(String src_text, String src_lang, String tgt_lang, int max_length, int num_beams, int top_k,
+                              boolean skip_special_tokens) {
+        //原来的key格式不变，磁盘上已有的条目还能命中
+        return src_lang + '\u0000' + tgt_lang + '\u0000' + max_length + '\u0000' + num_beams + '\u0000' + top_k
+                + (skip_special_tokens ? "\u0000s" : "") + '\u0000' + EncoderCache.normalize(src_text);
+    }
+
+    /** 把磁盘层的修改刷到文件 */
+    public synchronized void flush() {
+        if (disk != null) disk.force();
+    }
+
+    public synchronized void clear() {
+        memory.clear();
+        if (disk != null) resetDisk();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /** 命中里内存没有、从磁盘层读出来的次数 */
+    public synchronized long getDiskHitCount() {
+        return diskHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized double getHitRatio() {
+        long total = hitCount + missCount;
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    public synchronized int getMemoryEntryCount() {
+        return memory.size();
+    }
+
+    public synchronized int getDiskEntryCount() {
+        return diskIndex.size();
+    }
+
+    /** 磁盘层已用的字节数 */
+    public synchronized long getDiskSizeBytes() {
+        return disk == null ? 0 : diskTail;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public synchronized long getDiskEvictionCount() {
+        return diskEvictionCount;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (diskFile == null) return;
+        disk.force();
+        disk = null;
+        diskIndex.clear();
+        diskFile.close();
+        diskFile = null;
+    }
+}
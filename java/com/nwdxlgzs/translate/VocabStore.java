@@ -0,0 +1,172 @@
+package com.nwdxlgzs.translate;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * 紧凑词表：所有token的字符连续放在一个char[]里，按id查offsets切出来；
+ * 编码用开放寻址表（存id+1，0表示空槽）直接在char池上比较，不需要Map&lt;String, Long&gt;那一堆装箱的Long和Entry。
+ * id可以不连续，没有的id在present里是false。
+ */
+final class VocabStore {
+    private final char[] pool;
+    //id的token是pool[offsets[id], offsets[id + 1])
+    private final int[] offsets;
+    private final BitSet present;
+    private final int[] table;
+    private final int mask;
+    private final int size;
+
+    private VocabStore(char[] pool, int[] offsets, BitSet present) {
+        this.pool = pool;
+        this.offsets = offsets;
+        this.present = present;
+        this.size = present.cardinality();
+        int capacity = 16;
+        while (capacity < size * 2) capacity <<= 1;
+        table = new int[capacity];
+        mask = capacity - 1;
+        for (int id = present.nextSetBit(0); id >= 0; id = present.nextSetBit(id + 1)) {
+            int slot = hash(pool, offsets[id], offsets[id + 1]) & mask;
+            while (table[slot] != 0) {
+                int other = table[slot] - 1;
+                if (equals(other, pool, offsets[id], offsets[id + 1])) break;
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id + 1;
+        }
+    }
+
+    private static int hash(char[] chars, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) h = 31 * h + chars[i];
+        return h ^ (h >>> 16);
+    }
+
+    private static int hash(String s) {
+        int h = s.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private boolean equals(int id, char[] chars, int start, int end) {
+        int length = offsets[id + 1] - offsets[id];
+        if (length != end - start) return false;
+        for (int i = 0; i < length; i++) {
+            if (pool[offsets[id] + i] != chars[start + i]) return false;
+        }
+        return true;
+    }
+
+    private boolean equals(int id, String s) {
+        int start = offsets[id];
+        int length = offsets[id + 1] - start;
+        if (length != s.length()) return false;
+        for (int i = 0; i < length; i++) {
+            if (pool[start + i] != s.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /** token的id，不在词表里返回-1 */
+    long get(String token) {
+        int slot = hash(token) & mask;
+        while (table[slot] != 0) {
+            int id = table[slot] - 1;
+            if (equals(id, token)) return id;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    boolean contains(long id) {
+        return id >= 0 && id < offsets.length - 1 && present.get((int) id);
+    }
+
+    /** id对应的token，不在词表里返回null */
+    String token(long id) {
+        if (!contains(id)) return null;
+        return new String(pool, offsets[(int) id], offsets[(int) id + 1] - offsets[(int) id]);
+    }
+
+    int tokenLength(long id) {
+        return offsets[(int) id + 1] - offsets[(int) id];
+    }
+
+    /** 把id的token追加到sb，'▁'换成空格；调用前先contains检查 */
+    void appendDecoded(StringBuilder sb, long id) {
+        for (int i = offsets[(int) id]; i < offsets[(int) id + 1]; i++) {
+            char c = pool[i];
+            sb.append(c == '▁' ? ' ' : c);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** 下一个存在的id，没有了返回-1 */
+    int nextId(int from) {
+        return present.nextSetBit(from);
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(offsets.length);
+        for (int offset : offsets) out.writeInt(offset);
+        long[] bits = present.toLongArray();
+        out.writeInt(bits.length);
+        for (long word : bits) out.writeLong(word);
+        out.writeInt(pool.length);
+        for (char c : pool) out.writeChar(c);
+    }
+
+    static VocabStore readFrom(ByteBuffer in) {
+        int[] offsets = new int[in.getInt()];
+        in.asIntBuffer().get(offsets);
+        in.position(in.position() + offsets.length * 4);
+        long[] bits = new long[in.getInt()];
+        in.asLongBuffer().get(bits);
+        in.position(in.position() + bits.length * 8);
+        char[] pool = new char[in.getInt()];
+        in.asCharBuffer().get(pool);
+        in.position(in.position() + pool.length * 2);
+        return new VocabStore(pool, offsets, BitSet.valueOf(bits));
+    }
+
+    static final class Builder {
+        private String[] tokens = new String[1024];
+        private int maxId = -1;
+
+        /** 同一个id加多次以最后一次为准 */
+        void put(String token, long id) {
+            if (id < 0 || id >= Integer.MAX_VALUE - 1) throw new IllegalArgumentException("token id out of range: " + id);
+            if (id >= tokens.length) tokens = Arrays.copyOf(tokens, Math.max((int) id + 1, tokens.length * 2));
+            tokens[(int) id] = token;
+            maxId = Math.max(maxId, (int) id);
+        }
+
+        VocabStore build() {
+            int n = maxId + 1;
+            int chars = 0;
+            for (int id = 0; id < n; id++) {
+                if (tokens[id] != null) chars += tokens[id].length();
+            }
+            char[] pool = new char[chars];
+            int[] offsets = new int[n + 1];
+            BitSet present = new BitSet(n);
+            int offset = 0;
+            for (int id = 0; id < n; id++) {
+                offsets[id] = offset;
+                String token = tokens[id];
+                if (token == null) continue;
+                token.getChars(0, token.length(), pool, offset);
+                offset += token.length();
+                present.set(id);
+            }
+            offsets[n] = offset;
+            return new VocabStore(pool, offsets, present);
+        }
+    }
+}